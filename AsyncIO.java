@@ -0,0 +1,276 @@
+/**
+ * @file AsyncIO.java
+ * @author Midori Williams
+ * @author Kevin Hsu
+ * @author Bowman Simmons
+ *
+ * AsyncIO carries out file reads and writes on behalf of threads that do not
+ * want to block on them. SysLib.aread() and SysLib.awrite() queue a request
+ * against a file descriptor and return a handle at once; SysLib.await()
+ * blocks until that request has completed and SysLib.apoll() checks on it
+ * without blocking. Both return the byte count the plain read or write would
+ * have.
+ *
+ * A small pool of worker threads runs the queued requests through the file
+ * system. Requests on the same file table entry run one at a time in the
+ * order they were queued, so they share the seek pointer exactly as the same
+ * calls made synchronously would. A worker that finishes raises a disk
+ * interrupt with SysLib.aiodone(), and the Kernel's INTERRUPT_DISK handler
+ * posts the completion and wakes whoever is waiting on it.
+ *
+ * A handle belongs to the thread that submitted it, and only that thread may
+ * await or poll it. Results nobody collected are dropped when their entry is
+ * closed or their thread exits, so they cannot fill the request table.
+ * */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+public class AsyncIO {
+    private final static int WORKERS = 4;        // requests run at once
+    private final static int MAX_REQUESTS = 256; // uncollected requests
+
+    private FileSystem fs;
+    private HashMap<Integer, Request> requests;  // handle -> request
+    private LinkedList<Request> queue;           // not yet started
+    private HashSet<FileTableEntry> busy;        // entries a worker is using
+    private int nextHandle;
+
+    /** ============================== Request =================================
+     * One queued read or write and, once done, its result
+     * */
+    private class Request {
+        int handle;
+        int tid;                       // the thread that submitted it
+        FileTableEntry ftEnt;
+        byte[] buffer;
+        boolean write;
+        int result;
+        boolean done;
+        boolean orphaned;              // its thread exited before it finished
+
+        Request(int handle, int tid, FileTableEntry ftEnt, byte[] buffer,
+                boolean write) {
+            this.handle = handle;
+            this.tid = tid;
+            this.ftEnt = ftEnt;
+            this.buffer = buffer;
+            this.write = write;
+            this.result = Kernel.ERROR;
+            this.done = false;
+            this.orphaned = false;
+        }
+    }
+
+    /** =============================== Worker =================================
+     * Takes queued requests and runs them through the file system. A request
+     * that throws fails with ERROR rather than killing the worker, and is
+     * always completed so nobody waits on it forever.
+     * */
+    private class Worker extends Thread {
+        public void run() {
+            while (true) {
+                Request request = take();
+                try {
+                    request.result = request.write
+                            ? fs.write(request.ftEnt, request.buffer)
+                            : fs.read(request.ftEnt, request.buffer);
+                } catch (RuntimeException e) {
+                    request.result = Kernel.ERROR;
+                } finally {
+                    SysLib.aiodone(request.handle);
+                }
+            }
+        }
+    }
+
+    /** ============================= Constructor ==============================
+     * Creates an empty request table and starts the worker threads
+     *
+     * @param fs - the file system requests are carried out on
+     * */
+    public AsyncIO(FileSystem fs) {
+        this.fs = fs;
+        requests = new HashMap<Integer, Request>();
+        queue = new LinkedList<Request>();
+        busy = new HashSet<FileTableEntry>();
+        nextHandle = 0;
+        for (int i = 0; i < WORKERS; i++) {
+            Worker worker = new Worker();
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /** ================================ submit ================================
+     * Queues a read into or a write from buffer on a file table entry
+     *
+     * @param tid    - the thread submitting it, which alone may collect it
+     * @param ftEnt  - the open file
+     * @param buffer - the data to write, or where to put the data read
+     * @param write  - true for a write, false for a read
+     * @return       - the request's handle, or -1 if too many requests are
+     *                 outstanding
+     * */
+    public synchronized int submit(int tid, FileTableEntry ftEnt,
+                                   byte[] buffer, boolean write) {
+        if (ftEnt == null || buffer == null
+                || requests.size() >= MAX_REQUESTS)
+            return Kernel.ERROR;
+
+        while (requests.containsKey(nextHandle) || nextHandle < 0)
+            nextHandle = (nextHandle < 0) ? 0 : nextHandle + 1;
+        Request request = new Request(nextHandle++, tid, ftEnt, buffer,
+                write);
+        requests.put(request.handle, request);
+        queue.addLast(request);
+        notifyAll();
+        return request.handle;
+    }
+
+    /** =============================== complete ===============================
+     * Posts the completion of a request. Called from the Kernel's disk
+     * interrupt handler.
+     *
+     * @param handle - the request that finished
+     * */
+    public synchronized void complete(int handle) {
+        Request request = requests.get(handle);
+        if (request == null)
+            return;
+        request.done = true;
+        busy.remove(request.ftEnt);
+        if (request.orphaned)
+            requests.remove(handle);
+        notifyAll();
+    }
+
+    /** ================================ await =================================
+     * Blocks until a request completes and collects its result
+     *
+     * @param tid    - the thread waiting, which must have submitted it
+     * @param handle - the request to wait for
+     * @return       - the bytes read or written, or -1 on error
+     * */
+    public synchronized int await(int tid, int handle) {
+        Request request = owned(tid, handle);
+        if (request == null)
+            return Kernel.ERROR;
+        while (!request.done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        requests.remove(handle);
+        return request.result;
+    }
+
+    /** ================================= poll =================================
+     * Collects the result of a request if it has completed
+     *
+     * @param tid    - the thread checking, which must have submitted it
+     * @param handle - the request to check on
+     * @return       - the bytes read or written, Kernel.PENDING if it is still
+     *                 in flight, or -1 on error
+     * */
+    public synchronized int poll(int tid, int handle) {
+        Request request = owned(tid, handle);
+        if (request == null)
+            return Kernel.ERROR;
+        if (!request.done)
+            return Kernel.PENDING;
+        requests.remove(handle);
+        return request.result;
+    }
+
+    /** ================================ drain =================================
+     * Waits until no request on ftEnt is queued or running, so the entry can
+     * be closed, and drops the results nobody collected
+     *
+     * @param ftEnt - the entry about to be closed
+     * */
+    public synchronized void drain(FileTableEntry ftEnt) {
+        while (busy.contains(ftEnt) || queued(ftEnt)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        for (Iterator<Request> it = requests.values().iterator();
+                it.hasNext(); ) {
+            if (it.next().ftEnt == ftEnt)
+                it.remove();
+        }
+    }
+
+    /** ================================= exit =================================
+     * Drops the requests of an exiting thread. Those already finished go at
+     * once; those still queued or running are left to finish, since their
+     * writes were asked for, and go as soon as they do.
+     *
+     * @param tid - the thread exiting
+     * */
+    public synchronized void exit(int tid) {
+        for (Iterator<Request> it = requests.values().iterator();
+                it.hasNext(); ) {
+            Request request = it.next();
+            if (request.tid != tid)
+                continue;
+            if (request.done)
+                it.remove();
+            else
+                request.orphaned = true;
+        }
+    }
+
+    /** ================================= take =================================
+     * Waits for the oldest queued request whose file table entry no other
+     * worker is using and marks that entry busy
+     *
+     * @return - the request to run
+     * */
+    private synchronized Request take() {
+        while (true) {
+            for (Iterator<Request> it = queue.iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (!busy.contains(request.ftEnt)) {
+                    it.remove();
+                    busy.add(request.ftEnt);
+                    return request;
+                }
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /** ================================ owned =================================
+     * @param tid    - the thread asking
+     * @param handle - a request handle
+     * @return       - the request, or null if it does not exist or belongs
+     *                 to another thread
+     * */
+    private Request owned(int tid, int handle) {
+        Request request = requests.get(handle);
+        if (request == null || request.tid != tid || request.orphaned)
+            return null;
+        return request;
+    }
+
+    /** ================================ queued ================================
+     * @param ftEnt - a file table entry
+     * @return      - true if a request on it has not started yet
+     * */
+    private boolean queued(FileTableEntry ftEnt) {
+        for (Request request : queue) {
+            if (request.ftEnt == ftEnt)
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,609 @@
+/**
+ * @file Cache.java
+ * @author Midori Williams
+ * @author Kevin Hsu
+ * @author Bowman Simmons
+ *
+ * The Cache class is the single write-back buffer cache that every file system
+ * block (superblock, inodes, indirect blocks and file data) passes through on
+ * its way to and from the Disk. It is reached through SysLib.cread(),
+ * SysLib.cwrite(), SysLib.csync() and SysLib.flush(), and itself goes to the
+ * disk through the kernel's DiskQueue.
+ *
+ * Replacement is segmented LRU, which keeps one-off scans from flushing out
+ * hot blocks. A block enters the probationary segment on a miss and is only
+ * promoted to the protected segment when it is touched a second time. Victims
+ * are always taken from the probationary segment first, so a long sequential
+ * read can only ever recycle probationary frames.
+ *
+ * Blocks can also be prefetched ahead of use. A prefetched block waits in
+ * probation, and the first real reference to it only counts as its first
+ * touch, so read-ahead does not make every streamed block look hot.
+ *
+ * The cache's lock only guards its maps and frames and is never held across
+ * disk I/O. A frame being read from the disk is marked busy, and anyone else
+ * wanting that block sleeps on the frame alone. A dirty block evicted or
+ * synced keeps its data in a write-back on its way to the disk, which a miss
+ * on that block is served from, and a newer write-back of a block waits for
+ * the older one to land first.
+ * */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class Cache {
+    private final static int PROTECTED_PERCENT = 75; // share of frames kept
+                                                      // for re-referenced blks
+
+    private DiskQueue disk;            // where misses and write-backs go
+    private int blockSize;             // bytes per cached block
+    private int cacheBlocks;           // total number of frames
+    private int protectedBlocks;       // max frames in the protected segment
+
+    // both segments are kept in access order, so the eldest entry is the LRU
+    private LinkedHashMap<Integer, Entry> probation;
+    private LinkedHashMap<Integer, Entry> protect;
+
+    private int hits;                  // reads/writes served from memory
+    private int misses;                // reads/writes that went to the disk
+
+    // the newest write-back of each block still on its way to the disk
+    private HashMap<Integer, WriteBack> writing;
+
+    /** =============================== Entry ==================================
+     * One cache frame: the disk block it holds, whether it has been changed
+     * since it was read, and the cached data itself
+     * */
+    private class Entry {
+        int     blockId;
+        boolean dirty;
+        boolean prefetched;            // loaded ahead, not referenced yet
+        volatile boolean busy;         // being read from the disk
+        byte[]  data;
+
+        Entry(int blockId) {
+            this.blockId = blockId;
+            this.dirty = false;
+            this.prefetched = false;
+            this.busy = false;
+            this.data = new byte[blockSize];
+        }
+    }
+
+    /** ============================== WriteBack ===============================
+     * A dirty block's contents on their way to the disk, which no longer
+     * belong to any frame
+     * */
+    private class WriteBack {
+        int       blockId;
+        byte[]    data;
+        WriteBack previous;            // an older write of the block, which
+                                       // must land first
+        volatile boolean done;
+
+        WriteBack(int blockId, byte[] data, WriteBack previous) {
+            this.blockId = blockId;
+            this.data = data;
+            this.previous = previous;
+            this.done = false;
+        }
+
+        synchronized void finish() {
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void await() {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /** ============================= Constructor ==============================
+     * Creates an empty cache of cacheBlocks frames of blockSize bytes each
+     *
+     * @param blockSize   - the size of one disk block
+     * @param cacheBlocks - the number of blocks the cache can hold
+     * @param disk        - the queue misses and write-backs are sent to
+     * */
+    public Cache(int blockSize, int cacheBlocks, DiskQueue disk) {
+        this.disk = disk;
+        this.blockSize = blockSize;
+        this.cacheBlocks = Math.max(cacheBlocks, 1);
+        protectedBlocks = this.cacheBlocks * PROTECTED_PERCENT / 100;
+        probation = new LinkedHashMap<Integer, Entry>(this.cacheBlocks, 0.75f,
+                true);
+        protect = new LinkedHashMap<Integer, Entry>(this.cacheBlocks, 0.75f,
+                true);
+        writing = new HashMap<Integer, WriteBack>();
+    }
+
+    /** ================================= read =================================
+     * Copies the block blockId into buffer, reading it from the disk only if
+     * it is not already cached
+     *
+     * @param blockId - the disk block to read
+     * @param buffer  - receives the block contents
+     * @return        - false if blockId or buffer are invalid or blockId
+     *                  is not on the disk, else true
+     * */
+    public boolean read(int blockId, byte[] buffer) {
+        return read(blockId, 1, buffer, 0);
+    }
+
+    /** ================================= read =================================
+     * Copies a run of consecutive blocks starting at blockId into buffer at
+     * offset in one request, reading only the blocks not already cached
+     *
+     * @param blockId - the first disk block to read
+     * @param blocks  - the number of blocks in the run
+     * @param buffer  - receives the blocks back to back
+     * @param offset  - where in buffer the first block goes
+     * @return        - false if the run or buffer are invalid or the run
+     *                  runs off the disk, else true
+     * */
+    public boolean read(int blockId, int blocks, byte[] buffer, int offset) {
+        if (blockId < 0 || blocks < 1 || buffer == null || offset < 0
+                || offset + blocks * blockSize > buffer.length)
+            return false;
+
+        boolean[] copied = new boolean[blocks];
+        int left = blocks;
+        while (left > 0) {
+            ArrayList<Entry> loads = new ArrayList<Entry>();
+            ArrayList<WriteBack> evicted = new ArrayList<WriteBack>();
+            Entry loading = null;      // a frame someone else is reading
+
+            synchronized (this) {
+                for (int i = 0; i < blocks; i++) {
+                    if (copied[i])
+                        continue;
+                    Entry entry = lookup(blockId + i);
+                    if (entry == null)
+                        entry = fill(blockId + i, loads, evicted);
+                    if (entry.busy) {
+                        if (!loads.contains(entry))
+                            loading = entry;
+                        continue;      // copied once it is loaded
+                    }
+                    System.arraycopy(entry.data, 0, buffer,
+                            offset + i * blockSize, blockSize);
+                    copied[i] = true;
+                    left--;
+                }
+            }
+
+            // the frames we are loading stay busy, so nobody else touches them
+            if (!load(loads)) {
+                discard(loads);
+                writeBack(evicted);
+                return false;
+            }
+            for (Entry entry : loads) {
+                int i = entry.blockId - blockId;
+                System.arraycopy(entry.data, 0, buffer, offset + i * blockSize,
+                        blockSize);
+                copied[i] = true;
+                left--;
+            }
+            release(loads);
+            writeBack(evicted);
+            if (loading != null)
+                await(loading);
+        }
+        return true;
+    }
+
+    /** ================================ write =================================
+     * Copies buffer into the cached copy of blockId and marks it dirty. The
+     * block is written back to the disk on eviction, sync() or flush(). A
+     * write never reads the old contents since the whole block is replaced.
+     *
+     * @param blockId - the disk block to write
+     * @param buffer  - the new block contents
+     * @return        - false if blockId or buffer are invalid, else true
+     * */
+    public boolean write(int blockId, byte[] buffer) {
+        return write(blockId, 1, buffer, 0);
+    }
+
+    /** ================================ write =================================
+     * Copies a run of consecutive blocks from buffer at offset into the cache
+     * in one request and marks them all dirty
+     *
+     * @param blockId - the first disk block to write
+     * @param blocks  - the number of blocks in the run
+     * @param buffer  - holds the new contents back to back
+     * @param offset  - where in buffer the first block starts
+     * @return        - false if the run or buffer are invalid, else true
+     * */
+    public boolean write(int blockId, int blocks, byte[] buffer, int offset) {
+        if (blockId < 0 || blocks < 1 || buffer == null || offset < 0
+                || offset + blocks * blockSize > buffer.length)
+            return false;
+
+        boolean[] written = new boolean[blocks];
+        int left = blocks;
+        while (left > 0) {
+            ArrayList<WriteBack> evicted = new ArrayList<WriteBack>();
+            Entry loading = null;      // a frame someone else is reading
+
+            synchronized (this) {
+                for (int i = 0; i < blocks; i++) {
+                    if (written[i])
+                        continue;
+                    Entry entry = lookup(blockId + i);
+                    if (entry == null) {
+                        entry = allocate(blockId + i, evicted);
+                    } else if (entry.busy) {
+                        loading = entry;   // the load would overwrite us
+                        continue;
+                    }
+                    System.arraycopy(buffer, offset + i * blockSize,
+                            entry.data, 0, blockSize);
+                    entry.dirty = true;
+                    written[i] = true;
+                    left--;
+                }
+            }
+
+            writeBack(evicted);
+            if (loading != null)
+                await(loading);
+        }
+        return true;
+    }
+
+    /** =============================== prefetch ===============================
+     * Reads whichever blocks of a run are not cached yet into probation,
+     * without counting as a reference to any of them
+     *
+     * @param blockId - the first disk block of the run
+     * @param blocks  - the number of blocks in the run
+     * @return        - false if the run is invalid or runs off the disk,
+     *                  else true
+     * */
+    public boolean prefetch(int blockId, int blocks) {
+        if (blockId < 0 || blocks < 1)
+            return false;
+
+        ArrayList<Entry> loads = new ArrayList<Entry>();
+        ArrayList<WriteBack> evicted = new ArrayList<WriteBack>();
+        synchronized (this) {
+            for (int i = 0; i < blocks; i++) {
+                if (protect.containsKey(blockId + i)
+                        || probation.containsKey(blockId + i))
+                    continue;
+                fill(blockId + i, loads, evicted).prefetched = true;
+            }
+        }
+
+        // a reader that gets to a frame first sleeps on it until it is in
+        boolean loaded = load(loads);
+        if (loaded)
+            release(loads);
+        else
+            discard(loads);
+        writeBack(evicted);
+        return loaded;
+    }
+
+    /** ================================= sync =================================
+     * Writes every dirty block back to the disk, keeping them all cached, and
+     * returns once every write-back started before it has landed too
+     * */
+    public void sync() {
+        ArrayList<WriteBack> writes = new ArrayList<WriteBack>();
+        ArrayList<WriteBack> earlier;
+        synchronized (this) {
+            earlier = new ArrayList<WriteBack>(writing.values());
+            collectDirty(probation, writes);
+            collectDirty(protect, writes);
+        }
+        writeBack(writes);
+        for (WriteBack write : earlier)
+            write.await();
+    }
+
+    /** ================================ flush =================================
+     * Writes every dirty block back to the disk and empties the cache of
+     * every block that is still clean and not being read
+     * */
+    public void flush() {
+        sync();
+        synchronized (this) {
+            dropClean(probation);
+            dropClean(protect);
+        }
+    }
+
+    /** ============================== hitRatio ================================
+     * @return - the percentage of reads and writes served without disk I/O
+     * */
+    public synchronized int hitRatio() {
+        int total = hits + misses;
+        return (total == 0) ? 0 : (hits * 100) / total;
+    }
+
+    /** ================================ lookup ================================
+     * Finds blockId in the cache, promoting it to the protected segment if
+     * this is its second reference. When the protected segment overflows its
+     * least recently used block drops back into probation. A prefetched block
+     * stays in probation on its first reference.
+     *
+     * @param blockId - the block to find
+     * @return        - the frame holding blockId, or null on a miss
+     * */
+    private Entry lookup(int blockId) {
+        Entry entry = protect.get(blockId);
+        if (entry != null) {
+            hits++;
+            return entry;
+        }
+
+        entry = probation.get(blockId);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (entry.prefetched) {
+            entry.prefetched = false;
+            return entry;
+        }
+        probation.remove(blockId);
+        protect.put(blockId, entry);
+        if (protect.size() > protectedBlocks) {
+            Iterator<Entry> eldest = protect.values().iterator();
+            Entry demoted = eldest.next();
+            eldest.remove();
+            probation.put(demoted.blockId, demoted);
+        }
+        return entry;
+    }
+
+    /** =============================== allocate ===============================
+     * Makes room for blockId, evicting the least recently used probationary
+     * block (or protected block if probation is empty) that is not being
+     * read. A dirty victim's data leaves as a write-back for the caller to
+     * write once the cache's lock is dropped. The new frame starts out in
+     * probation. Called holding the cache.
+     *
+     * @param blockId - the block that is about to be cached
+     * @param evicted - receives the write-back of a dirty victim
+     * @return        - the frame now assigned to blockId
+     * */
+    private Entry allocate(int blockId, ArrayList<WriteBack> evicted) {
+        while (probation.size() + protect.size() >= cacheBlocks) {
+            Entry victim = victim(probation);
+            if (victim == null)
+                victim = victim(protect);
+            if (victim == null)
+                break;      // every frame is being read, so grow for now
+            if (victim.dirty)
+                evicted.add(startWriteBack(victim.blockId, victim.data));
+        }
+        Entry entry = new Entry(blockId);
+        probation.put(blockId, entry);
+        return entry;
+    }
+
+    /** ================================ victim ================================
+     * Removes the least recently used frame of a segment that is not being
+     * read. Called holding the cache.
+     *
+     * @param segment - the segment to evict from
+     * @return        - the evicted frame, or null if there is none
+     * */
+    private Entry victim(LinkedHashMap<Integer, Entry> segment) {
+        for (Iterator<Entry> it = segment.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (!entry.busy) {
+                it.remove();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** ================================= fill =================================
+     * Gives a missing block a frame. A block still being written back is
+     * copied from its write-back, since the disk may not have it yet; any
+     * other is marked busy and queued on loads. Called holding the cache.
+     *
+     * @param blockId - the missing block
+     * @param loads   - receives the frame if it must be read from the disk
+     * @param evicted - receives the write-back of a dirty victim
+     * @return        - the new frame
+     * */
+    private Entry fill(int blockId, ArrayList<Entry> loads,
+                       ArrayList<WriteBack> evicted) {
+        Entry entry = allocate(blockId, evicted);
+        WriteBack pending = writing.get(blockId);
+        if (pending != null) {
+            System.arraycopy(pending.data, 0, entry.data, 0, blockSize);
+        } else {
+            entry.busy = true;
+            loads.add(entry);
+        }
+        return entry;
+    }
+
+    /** ================================= load =================================
+     * Reads busy frames from the disk, submitting them to the DiskQueue
+     * together so a run of misses goes out as one transfer. Called without
+     * the cache's lock.
+     *
+     * @param loads - the frames to read
+     * @return      - false, reading nothing, if a block is not on the disk
+     * */
+    private boolean load(ArrayList<Entry> loads) {
+        if (loads.isEmpty())
+            return true;
+        int[] blockIds = new int[loads.size()];
+        byte[][] buffers = new byte[loads.size()][];
+        for (int i = 0; i < blockIds.length; i++) {
+            blockIds[i] = loads.get(i).blockId;
+            buffers[i] = loads.get(i).data;
+        }
+        return disk.read(blockIds, buffers);
+    }
+
+    /** =============================== release ================================
+     * Marks loaded frames ready and wakes whoever is waiting on them
+     *
+     * @param loads - the frames just read
+     * */
+    private void release(ArrayList<Entry> loads) {
+        synchronized (this) {
+            for (Entry entry : loads)
+                entry.busy = false;
+        }
+        for (Entry entry : loads) {
+            synchronized (entry) {
+                entry.notifyAll();
+            }
+        }
+    }
+
+    /** =============================== discard ================================
+     * Drops frames that could not be loaded and wakes whoever is waiting on
+     * them, who will find the blocks missing again
+     *
+     * @param loads - the frames that failed to load
+     * */
+    private void discard(ArrayList<Entry> loads) {
+        synchronized (this) {
+            for (Entry entry : loads) {
+                if (probation.get(entry.blockId) == entry)
+                    probation.remove(entry.blockId);
+                else if (protect.get(entry.blockId) == entry)
+                    protect.remove(entry.blockId);
+            }
+        }
+        release(loads);
+    }
+
+    /** ================================ await =================================
+     * Sleeps until a frame someone else is reading is ready
+     *
+     * @param entry - the busy frame
+     * */
+    private void await(Entry entry) {
+        synchronized (entry) {
+            while (entry.busy) {
+                try {
+                    entry.wait();
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    /** ============================ startWriteBack ============================
+     * Records that a block's data is on its way to the disk, behind any older
+     * write-back of the same block. Called holding the cache.
+     *
+     * @param blockId - the dirty block
+     * @param data    - its contents, which no frame may change any more
+     * @return        - the write-back for the caller to pass to writeBack()
+     * */
+    private WriteBack startWriteBack(int blockId, byte[] data) {
+        WriteBack write = new WriteBack(blockId, data, writing.get(blockId));
+        writing.put(blockId, write);
+        return write;
+    }
+
+    /** ============================== writeBack ===============================
+     * Writes started write-backs to the disk, each once any older write of
+     * its block has landed. Those ready to go are sorted by block and
+     * submitted to the DiskQueue together, so consecutive blocks go out as
+     * one transfer. Only when none is ready does the caller wait, and the
+     * oldest unfinished write-back anywhere is always ready, so two callers
+     * cannot end up waiting on each other. Called without the cache's lock.
+     *
+     * @param writes - the write-backs to write
+     * */
+    private void writeBack(ArrayList<WriteBack> writes) {
+        ArrayList<WriteBack> left = new ArrayList<WriteBack>(writes);
+        while (!left.isEmpty()) {
+            ArrayList<WriteBack> ready = new ArrayList<WriteBack>();
+            for (WriteBack write : left) {
+                if (write.previous == null || write.previous.done)
+                    ready.add(write);
+            }
+            if (ready.isEmpty()) {
+                left.get(0).previous.await();
+                continue;
+            }
+            left.removeAll(ready);
+
+            Collections.sort(ready, new Comparator<WriteBack>() {
+                public int compare(WriteBack a, WriteBack b) {
+                    return Integer.compare(a.blockId, b.blockId);
+                }
+            });
+            int[] blockIds = new int[ready.size()];
+            byte[][] buffers = new byte[ready.size()][];
+            for (int i = 0; i < blockIds.length; i++) {
+                blockIds[i] = ready.get(i).blockId;
+                buffers[i] = ready.get(i).data;
+            }
+            if (!disk.write(blockIds, buffers)) {
+                // one block is not on the disk, so lose only that one
+                for (int i = 0; i < blockIds.length; i++)
+                    disk.write(blockIds[i], buffers[i]);
+            }
+
+            synchronized (this) {
+                for (WriteBack write : ready) {
+                    if (writing.get(write.blockId) == write)
+                        writing.remove(write.blockId);
+                }
+            }
+            for (WriteBack write : ready) {
+                write.previous = null;
+                write.finish();
+            }
+        }
+    }
+
+    /** ============================= collectDirty =============================
+     * Starts a write-back of a copy of every dirty frame in a segment and
+     * marks them clean. Called holding the cache.
+     *
+     * @param segment - the segment to collect from
+     * @param writes  - receives the write-backs
+     * */
+    private void collectDirty(LinkedHashMap<Integer, Entry> segment,
+                              ArrayList<WriteBack> writes) {
+        for (Entry entry : segment.values()) {
+            if (entry.dirty) {
+                writes.add(startWriteBack(entry.blockId, entry.data.clone()));
+                entry.dirty = false;
+            }
+        }
+    }
+
+    /** ============================== dropClean ===============================
+     * Removes every frame of a segment that is clean and not being read.
+     * Called holding the cache.
+     *
+     * @param segment - the segment to empty
+     * */
+    private void dropClean(LinkedHashMap<Integer, Entry> segment) {
+        for (Iterator<Entry> it = segment.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (!entry.dirty && !entry.busy)
+                it.remove();
+        }
+    }
+}
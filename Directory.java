@@ -10,128 +10,450 @@
  * Two arrays are utilized to this end, fsize and fnames, keeping track of file
  * sizes and names respectively.
  *
- * NOTE: directory2bytes is unused, and as you will later see, so is sync().
- *       Those functionalities are implemented elsewhere.
+ * The namespace is a tree. Every slot also records the inumber of the
+ * directory it lives in (fparent) and whether it is itself a directory
+ * (fdir), and fnames holds a single path component of up to maxChars. Slot 0
+ * is the root directory "/". Paths are resolved one component at a time
+ * through a per-directory hash index of child names, and whole resolved paths
+ * are kept in a small LRU path cache so repeated opens of deep paths cost a
+ * single probe. A stack of free slots makes allocation O(1). There is a slot
+ * per inode in the inode table, and when every slot is taken the superblock
+ * is asked to grow the table, so the arrays follow the number of files rather
+ * than a count fixed at format.
+ *
+ * On disk the directory is the data of the root inode, laid out as pages of
+ * 512 bytes each, several to a block when the disk has larger blocks. Page 0
+ * is a header holding the number of entry pages and a bit per page saying
+ * whether it holds any live entries. Every other page
+ * holds packed variable-length records (inumber, parent, flags, name). The
+ * in-memory image of each page is patched in place on create and delete and
+ * only that page is marked dirty, so persisting a change costs one block
+ * write; the header is only dirtied when a page fills its first slot or
+ * empties its last. The file system does the actual I/O: it writes whatever
+ * nextDirtyPage() reports, and at mount it reads the header and then only the
+ * live pages.
+ *
+ * Page layout:  [record count (2)][bytes used (2)][records...]
+ * Record:       [inumber (2)][parent (2)][flags (1)][name length (1)][name]
  * */
 
 // imports
 import java.lang.String;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Directory
 {
-    private static int maxChars = 30; // max chars of each filename
+    private static int maxChars = 30; // max chars of each path component
+    private final static int PATH_CACHE_SIZE = 256; // resolved paths to keep
+
+    // on-disk page format
+    public final static int PAGE_SIZE = Disk.blockSize;
+    private final static int DIR_MAGIC = 0x44495231;      // "DIR1"
+    private final static int HEADER_SIZE = 8;             // magic, page count
+    private final static int PAGE_HEADER = 4;             // count, bytes used
+    private final static int RECORD_HEADER = 6;
+    private final static int FLAG_DIR = 1;
+    private final static int MAX_PAGES = (PAGE_SIZE - HEADER_SIZE) * 8;
+                                                          // entry pages
 
     // Directory entries
     private int fsize[];        // each element stores a different file size.
     private char fnames[][];    // each element stores a different file name.
                                 // as a char arr
+    private short fparent[];    // each element stores its parent's inumber
+    private boolean fdir[];     // each element records if it is a directory
+
+    // directory inumber -> (child name -> child inumber)
+    private HashMap<Short, HashMap<String, Short>> children;
+    private LinkedHashMap<String, Short> pathCache; // resolved path -> inumber
+    private short freeSlots[];  // stack of unused inumbers
+    private int freeCount;      // number of inumbers on the stack
+
+    // pages, numbered from 1 since page 0 is the header
+    private short fpage[];      // each element stores the page holding it
+    private byte pages[][];     // in-memory page images, null if never used
+    private boolean pageDirty[]; // pages changed since last written
+    private boolean headerDirty; // header changed since last written
+    private int pageCount;      // number of entry pages in use on disk
+    private int fillPage;       // page the last record went into
+
+    private Superblock superBlock; // grows the inode table when it is full
 
     /** ============================= Constructor ==============================
      * Precondition:  Unitialized Directory object.
-     * Postcondition: this.fsize and this.fnames are each initialized to a
-     *                a length of the paramater value, total nodes.
-     *                each file size is initialized to 0. (which we believe
-     *                java does anyways). Each subarray of fnames is initialized
-     *                to a length of maxChars. Lastly, the root is set up at
-     *                index 0.
+     * Postcondition: this.fsize, this.fnames, this.fparent and this.fdir are
+     *                each initialized to a length of the number of inodes the
+     *                inode table holds so far. each file size is initialized
+     *                to 0. (which we believe java does anyways). Each subarray
+     *                of fnames is left null until its slot is used. Lastly,
+     *                the root is set up at index 0 as a directory that is its
+     *                own parent.
      *
-     * @param totalInodes - Integer representing the maximum number of nodes
+     * @param superBlock - the superblock, whose inode table the slots follow
      * */
-    public Directory(int totalInodes) {
-        // totalInodes = max files/inodes
+    public Directory(Superblock superBlock) {
+        // totalInodes = files/inodes so far
+        this.superBlock = superBlock;
+        int totalInodes = superBlock.totalInodes;
         fsize = new int[totalInodes];
         for (int i = 0; i < totalInodes; i++)
             fsize[i] = 0;
-        fnames = new char[totalInodes][maxChars];
+        fnames = new char[totalInodes][];
+        fparent = new short[totalInodes];
+        fdir = new boolean[totalInodes];
+        fpage = new short[totalInodes];
+        pages = new byte[MAX_PAGES + 1][];
+        pageDirty = new boolean[MAX_PAGES + 1];
+        headerDirty = false;
+        pageCount = 0;
+        fillPage = 1;
         String root = "/";
         fsize[0] = root.length();
-        root.getChars(0, fsize[0],
-                fnames[0], 0);
+        fnames[0] = root.toCharArray();
+        fdir[0] = true;
+        buildIndex();
     }
 
-    /** =========================== bytes2directory ============================
-     * Precondition:  (and assumption) the paramater byte array data has
-     *                received information from the disk to be put in the dir
-     * Postcondition: Put the data[] in the the directory
+    /** ============================== buildIndex ==============================
+     * Precondition:  the arrays hold the directory's entries
+     * Postcondition: The child indexes, path cache and free slot stack match
+     *                them
      * */
-    public int bytes2directory(byte data[]) {
-        int offset = 0;
-        for (int i = 0; i < fsize.length; i++, offset += 4){
-            fsize[i] = SysLib.bytes2int( data, offset );
+    private void buildIndex() {
+        children = new HashMap<Short, HashMap<String, Short>>();
+        pathCache = new LinkedHashMap<String, Short>(PATH_CACHE_SIZE, 0.75f,
+                true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Short> e) {
+                return size() > PATH_CACHE_SIZE;
+            }
+        };
+        freeSlots = new short[fsize.length];
+        freeCount = 0;
+
+        for (int i = 0; i < fsize.length; i++) {
+            if (fsize[i] > 0 && fdir[i])
+                children.put((short) i, new HashMap<String, Short>());
         }
+        // push from the top down so the lowest free inumber is handed out first
+        for (int i = fsize.length - 1; i >= 0; i--) {
+            if (fsize[i] == 0)
+                freeSlots[freeCount++] = (short) i;
+            else if (i != 0)
+                childrenOf(fparent[i]).put(
+                        new String(fnames[i], 0, fsize[i]), (short) i);
+        }
+    }
 
-        for (int i = 0; i < fnames.length; i++, offset += maxChars * 2){
-            String fname = new String (data, offset, maxChars * 2);
-            fname.getChars(0, fsize[i], fnames[i], 0);
+    /** ============================= bytes2header =============================
+     * Precondition:  data holds page 0 of the directory as read from the disk
+     * Postcondition: The number of entry pages is known, and the pages the
+     *                header says hold live entries are the only ones that
+     *                will report isLivePage()
+     *
+     * @param data - the header page
+     * @return     - false if data is not a directory header
+     * */
+    public synchronized boolean bytes2header(byte data[]) {
+        if (SysLib.bytes2int(data, 0) != DIR_MAGIC)
+            return false;
+        pageCount = Math.min(SysLib.bytes2int(data, 4), MAX_PAGES);
+        for (int page = 1; page <= pageCount; page++) {
+            if ((data[HEADER_SIZE + page / 8] & (1 << (page % 8))) != 0)
+                pages[page] = new byte[PAGE_SIZE];   // filled by bytes2page
         }
-        return 0;
+        return true;
+    }
+
+    /** ============================= isLivePage ===============================
+     * @param page - an entry page number
+     * @return     - true if the header said this page holds live entries
+     * */
+    public synchronized boolean isLivePage(int page) {
+        return page >= 1 && page <= pageCount && pages[page] != null;
     }
 
-    /** =========================== directory2bytes ============================
-     * Precondition:  Information is in the directory
-     * Postcondition: A returned byte array, ordered by file size,
+    /** ============================== bytes2page ==============================
+     * Precondition:  data holds a live entry page as read from the disk
+     * Postcondition: Every record in it is back in its slot. Call reindex()
+     *                once every live page has been loaded.
      *
-     * @return - the data
+     * @param page - the entry page number
+     * @param data - the page contents
      * */
-    public byte[] directory2bytes() {
-        int offset = 0;
+    public synchronized void bytes2page(int page, byte data[]) {
+        byte[] image = new byte[PAGE_SIZE];
+        System.arraycopy(data, 0, image, 0, PAGE_SIZE);
+        pages[page] = image;
 
-        // directory's disk block
-        byte[] data = new byte[(4 * fsize.length) +
-                (fnames.length * maxChars * 2)];
+        int count = SysLib.bytes2short(image, 0);
+        int offset = PAGE_HEADER;
+        for (int r = 0; r < count; r++) {
+            short i = SysLib.bytes2short(image, offset);
+            int length = image[offset + 5];
+            if (i > 0 && i < fsize.length) {
+                fsize[i] = length;
+                fnames[i] = new String(image, offset + RECORD_HEADER,
+                        length).toCharArray();
+                fparent[i] = SysLib.bytes2short(image, offset + 2);
+                fdir[i] = (image[offset + 4] & FLAG_DIR) != 0;
+                fpage[i] = (short) page;
+            }
+            offset += RECORD_HEADER + length;
+        }
+    }
+
+    /** =============================== reindex ================================
+     * Rebuilds the in-memory indexes after the pages have been loaded
+     * */
+    public synchronized void reindex() {
+        buildIndex();
+    }
 
-        for (int i = 0; i < fsize.length; i++, offset += 4) {
-            // only when there's an inode entry should we copy
-            if (fsize[i] > 0)
-                SysLib.int2bytes(fsize[i], data, offset);
+    /** ============================ nextDirtyPage =============================
+     * @param from - the page number to start looking at, 0 for the header
+     * @return     - the first page at or after from that has changed since it
+     *               was last written, or -1 if there is none
+     * */
+    public synchronized int nextDirtyPage(int from) {
+        if (from <= 0 && headerDirty)
+            return 0;
+        for (int page = Math.max(from, 1); page <= pageCount; page++) {
+            if (pageDirty[page])
+                return page;
         }
-        for (int i = 0; i < fnames.length; i++, offset += maxChars * 2) {
-            String fname = new String ( fnames[i] );
-            byte[] temp = fname.getBytes();
-            System.arraycopy(temp, 0, data, offset, temp.length);
+        return -1;
+    }
+
+    /** ============================== page2bytes ==============================
+     * Precondition:  page was reported by nextDirtyPage()
+     * Postcondition: A returned image of the page to write to the disk, and
+     *                the page is clean again
+     *
+     * @param page - the page number, 0 for the header
+     * @return     - the page contents
+     * */
+    public synchronized byte[] page2bytes(int page) {
+        byte[] data = new byte[PAGE_SIZE];
+        if (page == 0) {
+            SysLib.int2bytes(DIR_MAGIC, data, 0);
+            SysLib.int2bytes(pageCount, data, 4);
+            for (int p = 1; p <= pageCount; p++) {
+                if (pages[p] != null && SysLib.bytes2short(pages[p], 0) > 0)
+                    data[HEADER_SIZE + p / 8] |= (byte) (1 << (p % 8));
+            }
+            headerDirty = false;
+        } else {
+            System.arraycopy(pages[page], 0, data, 0, PAGE_SIZE);
+            pageDirty[page] = false;
         }
         return data;
     }
 
+    /** ================================ pages =================================
+     * @return - the number of entry pages, so the directory occupies pages()
+     *           + 1 blocks including its header
+     * */
+    public synchronized int pages() {
+        return pageCount;
+    }
+
+    /** ============================= addRecord ================================
+     * Appends slot i's record to the first page with room for it, starting a
+     * new page if none has
+     *
+     * @param i - the slot whose record to add
+     * @return  - false if the directory has no room left for the record
+     * */
+    private boolean addRecord(short i) {
+        int length = RECORD_HEADER + fsize[i];
+        int page = fillPage;
+        for (int tried = 0; tried <= pageCount; tried++) {
+            if (page >= 1 && page <= pageCount && used(page) + length
+                    <= PAGE_SIZE)
+                break;
+            page = (page % Math.max(pageCount, 1)) + 1;
+        }
+        if (page < 1 || page > pageCount || used(page) + length > PAGE_SIZE) {
+            if (pageCount == MAX_PAGES)
+                return false;
+            page = ++pageCount;
+            headerDirty = true;
+        }
+
+        if (pages[page] == null) {
+            pages[page] = new byte[PAGE_SIZE];
+            SysLib.short2bytes((short) PAGE_HEADER, pages[page], 2);
+        }
+        byte[] image = pages[page];
+        int count = SysLib.bytes2short(image, 0);
+        int offset = used(page);
+        SysLib.short2bytes(i, image, offset);
+        SysLib.short2bytes(fparent[i], image, offset + 2);
+        image[offset + 4] = (byte) (fdir[i] ? FLAG_DIR : 0);
+        image[offset + 5] = (byte) fsize[i];
+        for (int c = 0; c < fsize[i]; c++)
+            image[offset + RECORD_HEADER + c] = (byte) fnames[i][c];
+        SysLib.short2bytes((short) (count + 1), image, 0);
+        SysLib.short2bytes((short) (offset + length), image, 2);
+
+        if (count == 0)
+            headerDirty = true;   // page just became live
+        pageDirty[page] = true;
+        fpage[i] = (short) page;
+        fillPage = page;
+        return true;
+    }
+
+    /** ============================ removeRecord ==============================
+     * Removes slot i's record from its page, sliding the records after it
+     * down so the page stays packed
+     *
+     * @param i - the slot whose record to remove
+     * */
+    private void removeRecord(short i) {
+        int page = fpage[i];
+        byte[] image = pages[page];
+        int count = SysLib.bytes2short(image, 0);
+        int used = used(page);
+        int offset = PAGE_HEADER;
+        for (int r = 0; r < count; r++) {
+            int length = RECORD_HEADER + image[offset + 5];
+            if (SysLib.bytes2short(image, offset) == i) {
+                System.arraycopy(image, offset + length, image, offset,
+                        used - offset - length);
+                Arrays.fill(image, used - length, used, (byte) 0);
+                SysLib.short2bytes((short) (count - 1), image, 0);
+                SysLib.short2bytes((short) (used - length), image, 2);
+                if (count == 1)
+                    headerDirty = true;   // page just became empty
+                pageDirty[page] = true;
+                break;
+            }
+            offset += length;
+        }
+        fpage[i] = 0;
+    }
+
+    /** ================================= used =================================
+     * @param page - an entry page number
+     * @return     - the number of bytes of that page in use
+     * */
+    private int used(int page) {
+        return (pages[page] == null) ? PAGE_HEADER
+                : SysLib.bytes2short(pages[page], 2);
+    }
+
     /** ================================ ialloc ================================
      * Precondition:  An inode has not been allocated for the designated file
      * Postcondition: One has...
      *
-     * @param  - The name of the file without allocated space
+     * @param  - The path of the file without allocated space
      * @return - The inumber where the filename ends up being stored or -1 if
-     *           there's no room
-     * */
-    public short ialloc(String filename) {
-        
-        // if the file is not there already
-        if (getinum( filename ) == -1) {
-            int fs = filename.length();
-            for (int i = 0; i < fsize.length; i++) {
-                if (fsize[i] == 0) {    // if there's an empty slot for it
-                    fsize[i] = fs;
-                    fnames[i] = filename.toCharArray();
-
-                    return (short) i;
-                }
-            }
+     *           there's no room, the name is taken or its directory is missing
+     * */
+    public synchronized short ialloc(String filename) {
+        return create(filename, false);
+    }
+
+    /** ================================ mkdir =================================
+     * Precondition:  Nothing exists at path, but its parent directory does
+     * Postcondition: An empty directory exists at path
+     *
+     * @param  - The path of the new directory
+     * @return - The directory's inumber or -1 on failure
+     * */
+    public synchronized short mkdir(String path) {
+        return create(path, true);
+    }
+
+    /** ================================ create ================================
+     * Allocates a slot for the last component of path inside the directory
+     * named by the rest of it
+     *
+     * @param path  - the path to create
+     * @param isDir - true to create a directory, false for a file
+     * @return      - the new inumber or -1 on failure
+     * */
+    private short create(String path, boolean isDir) {
+        int end = trimEnd(path);
+        int slash = path.lastIndexOf('/', end - 1);
+        String name = path.substring(slash + 1, end);
+        if (name.length() == 0 || name.length() > maxChars)
+            return (short) -1;
+
+        // if the parent is a directory and the file is not there already
+        short parent = (slash <= 0) ? 0 : namei(path.substring(0, slash));
+        if (parent < 0 || !fdir[parent]
+                || children.get(parent).containsKey(name))
+            return (short) -1;
+        if (freeCount == 0 && !grow())
+            return (short) -1;    // no inodes left
+
+        short i = freeSlots[freeCount - 1];
+        fsize[i] = name.length();
+        fnames[i] = name.toCharArray();
+        fparent[i] = parent;
+        fdir[i] = isDir;
+        if (!addRecord(i)) {      // no room left on disk for the entry
+            fsize[i] = 0;
+            return (short) -1;
         }
+        freeCount--;
+        children.get(parent).put(name, i);
+        if (isDir)
+            children.put(i, new HashMap<String, Short>());
+        return i;
+    }
 
-        // if it's already there then, well, don't
-        return (short) -1;
+    /** ================================= grow =================================
+     * Precondition:  Every slot is in use
+     * Postcondition: The superblock has grown the inode table, and there is
+     *                a free slot for each of its new inodes
+     *
+     * @return - false if the inode table cannot grow any further
+     * */
+    private boolean grow() {
+        int old = fsize.length;
+        if (!superBlock.growInodes())
+            return false;
+        int capacity = superBlock.totalInodes;
+        fsize = Arrays.copyOf(fsize, capacity);
+        fnames = Arrays.copyOf(fnames, capacity);
+        fparent = Arrays.copyOf(fparent, capacity);
+        fdir = Arrays.copyOf(fdir, capacity);
+        fpage = Arrays.copyOf(fpage, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+        // push from the top down so the lowest new inumber is handed out first
+        for (int i = capacity - 1; i >= old; i--)
+            freeSlots[freeCount++] = (short) i;
+        return true;
     }
 
     /** ================================ ifree =================================
      * Precondition:  an allocated space at the inumber
-     * Postcondition: file deleted and space freed
+     * Postcondition: file deleted and space freed. A directory is only freed
+     *                once it is empty, and the root never is.
      *
      * @param  - the inumber to determine what to free (inode num / index num)
      * @return - true for success and false for failure
      * */
-    public boolean ifree(short iNumber) {
-        if (iNumber < fsize.length && fsize[iNumber] > 0) {
+    public synchronized boolean ifree(short iNumber) {
+        if (iNumber > 0 && iNumber < fsize.length && fsize[iNumber] > 0) {
+            if (fdir[iNumber] && !children.get(iNumber).isEmpty())
+                return false;   // directory not empty
+            children.get(fparent[iNumber]).remove(
+                    new String(fnames[iNumber], 0, fsize[iNumber]));
+            removeRecord(iNumber);
+            children.remove(iNumber);
+            pathCache.clear();  // any cached path may have gone through it
+            freeSlots[freeCount++] = iNumber;
             fsize[iNumber] = 0;
-            Arrays.fill(fnames[iNumber], '\0');
+            fparent[iNumber] = 0;
+            fdir[iNumber] = false;
+            fnames[iNumber] = null;
             return true;
         }
         // inumber not present
@@ -139,21 +461,80 @@ public class Directory
     }
 
     /** =============================== getinum ================================
-     * Precondition:  Have the name of an existing file
+     * Precondition:  Have the path of an existing file
      * Postcondition: Return the inumber for that existing file
      *
-     * @param  - the name of the file to retreive the inum for
-     * @return - the inumber of the file
+     * @param  - the path of the file to retreive the inum for
+     * @return - the inumber of the file, or -1 if there is no such file
      * */
-    public short getinum(String filename) {
+    public synchronized short getinum(String filename) {
         // returns the inumber (index number) corresponding to this filename
-        for (int i = 0; i < fnames.length; i++){
-            if (filename.equals(new String(fnames[i],0, fsize[i])))
-                return (short) i;
+        return namei(filename);
+    }
+
+    /** ============================= isDirectory ==============================
+     * @param iNumber - an allocated inumber
+     * @return        - true if it is a directory
+     * */
+    public synchronized boolean isDirectory(short iNumber) {
+        return iNumber >= 0 && iNumber < fdir.length && fdir[iNumber];
+    }
+
+    /** ================================ namei =================================
+     * Resolves a path to an inumber. Paths may start with "/" or not; both are
+     * taken from the root. Whole paths that resolved before are answered from
+     * the path cache, anything else is walked one component at a time.
+     *
+     * @param path - the path to resolve
+     * @return     - its inumber or -1 if any component is missing
+     * */
+    private short namei(String path) {
+        Short cached = pathCache.get(path);
+        if (cached != null)
+            return cached;
+
+        short current = 0;
+        int end = trimEnd(path);
+        int start = 0;
+        while (start < end) {
+            int slash = path.indexOf('/', start);
+            if (slash < 0 || slash > end)
+                slash = end;
+            if (slash > start) {
+                HashMap<String, Short> dir = children.get(current);
+                Short next = (dir == null) ? null
+                        : dir.get(path.substring(start, slash));
+                if (next == null)
+                    return (short) -1;
+                current = next;
+            }
+            start = slash + 1;
+        }
+        pathCache.put(path, current);
+        return current;
+    }
+
+    /** ============================== childrenOf ==============================
+     * @param iNumber - a directory's inumber
+     * @return        - its child index, created if this is its first child
+     * */
+    private HashMap<String, Short> childrenOf(short iNumber) {
+        HashMap<String, Short> dir = children.get(iNumber);
+        if (dir == null) {
+            dir = new HashMap<String, Short>();
+            children.put(iNumber, dir);
         }
+        return dir;
+    }
 
-        //filename not found
-        return (short) -1;
+    /** =============================== trimEnd ================================
+     * @param path - a path
+     * @return     - its length without any trailing '/' characters
+     * */
+    private static int trimEnd(String path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/')
+            end--;
+        return end;
     }
 }
-
@@ -0,0 +1,406 @@
+/**
+ * @file DiskQueue.java
+ * @author Midori Williams
+ * @author Kevin Hsu
+ * @author Bowman Simmons
+ *
+ * The Disk Queue stands between the kernel's raw disk calls and the Disk. A
+ * thread calling SysLib.rawread(), rawwrite() or sync() queues its request
+ * here and sleeps on the request alone, and a single dispatcher thread feeds
+ * the Disk one block at a time, waking each caller once its own block is
+ * done. The dispatcher is the only thread that ever waits on the Disk, so a
+ * disk interrupt wakes nobody else.
+ *
+ * The order requests are served in is chosen at BOOT:
+ *   FIFO     - arrival order, as the Disk used to see them
+ *   CLOOK    - the head sweeps upwards through the pending blocks and jumps
+ *              back to the lowest one at the top, so interleaved sequential
+ *              streams are served in block order instead of in turn
+ *   DEADLINE - C-LOOK, except that a request waiting past its deadline is
+ *              served next, so a far away block cannot starve
+ *
+ * A caller with several blocks to move, such as the Cache reading a run,
+ * queues them all at once, so they are pending together by the time the
+ * dispatcher looks. Once a request is chosen, pending requests of the same
+ * kind for the blocks right after it are taken along and issued back to
+ * back as one transfer, without the head moving away in between. A sync is
+ * a barrier: nothing queued after it is served before it.
+ *
+ * A request for a block the disk does not have is refused before it is
+ * queued, since the Disk would refuse it forever and stall the dispatcher.
+ *
+ * Over a MappedDisk there is no head to schedule, so each request is served
+ * at once by the thread making it and no dispatcher runs.
+ * */
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+public class DiskQueue extends Thread {
+    public final static int FIFO = 0;
+    public final static int CLOOK = 1;
+    public final static int DEADLINE = 2;
+
+    private final static int MAX_MERGE = 128;        // blocks per transfer,
+                                                     // a whole 64 KB block
+    private final static long READ_DEADLINE = 500;   // ms a read may wait
+    private final static long WRITE_DEADLINE = 5000; // ms a write may wait
+    private final static int INTERRUPT_WAIT = 100;   // ms before re-polling
+
+    private final static int READ = 0;
+    private final static int WRITE = 1;
+    private final static int SYNC = 2;
+
+    private Disk disk;
+    private MappedDisk mapped;          // null unless the disk is mapped
+    private int totalBlocks;            // blocks on the disk
+    private int order;                  // FIFO, CLOOK or DEADLINE
+    private LinkedList<Request> queue;  // pending requests in arrival order
+    private int head;                   // the last block handed to the Disk
+    private boolean interrupted;        // a disk interrupt not yet seen
+
+    /** =============================== Request ================================
+     * One caller's request, which it sleeps on until done
+     * */
+    private class Request {
+        int kind;
+        int blockId;
+        byte[] buffer;
+        long deadline;
+        boolean done;
+
+        Request(int kind, int blockId, byte[] buffer, long wait) {
+            this.kind = kind;
+            this.blockId = blockId;
+            this.buffer = buffer;
+            this.deadline = System.currentTimeMillis() + wait;
+        }
+    }
+
+    /** ============================= Constructor ==============================
+     * Creates an empty queue for disk and starts the dispatcher
+     *
+     * @param disk        - the Disk requests go to
+     * @param totalBlocks - the number of blocks on disk
+     * @param order       - FIFO, CLOOK or DEADLINE
+     * */
+    public DiskQueue(Disk disk, int totalBlocks, int order) {
+        this.disk = disk;
+        this.totalBlocks = totalBlocks;
+        this.order = (order == FIFO || order == DEADLINE) ? order : CLOOK;
+        queue = new LinkedList<Request>();
+        head = 0;
+        setDaemon(true);
+        start();
+    }
+
+    /** ============================= Constructor ==============================
+     * Creates a queue serving requests straight from a memory-mapped disk
+     *
+     * @param mapped - the MappedDisk requests go to
+     * */
+    public DiskQueue(MappedDisk mapped) {
+        this.mapped = mapped;
+        this.totalBlocks = mapped.blocks();
+        queue = new LinkedList<Request>();
+    }
+
+    /** ================================= read =================================
+     * Reads one block, returning once it is in buffer
+     *
+     * @param blockId - the disk block to read
+     * @param buffer  - receives the block
+     * @return        - false if blockId is not on the disk
+     * */
+    public boolean read(int blockId, byte[] buffer) {
+        return submit(new Request[] {
+                new Request(READ, blockId, buffer, READ_DEADLINE) });
+    }
+
+    /** ================================= read =================================
+     * Reads several blocks, queueing them together so adjacent ones go out as
+     * one transfer, and returns once all of them are in their buffers
+     *
+     * @param blockIds - the disk blocks to read
+     * @param buffers  - buffers[i] receives blockIds[i]
+     * @return         - false, reading nothing, if a block is not on the disk
+     * */
+    public boolean read(int[] blockIds, byte[][] buffers) {
+        return submit(requests(READ, blockIds, buffers, READ_DEADLINE));
+    }
+
+    /** ================================= read =================================
+     * Reads a run of consecutive blocks into buffer at offset, queueing them
+     * together so they go out as one transfer
+     *
+     * @param blockId - the first disk block of the run
+     * @param blocks  - the number of blocks in the run
+     * @param buffer  - receives the blocks back to back
+     * @param offset  - where in buffer the first block goes
+     * @return        - false, reading nothing, if the run or buffer are
+     *                  invalid or the run runs off the disk
+     * */
+    public boolean read(int blockId, int blocks, byte[] buffer, int offset) {
+        if (blocks < 1 || buffer == null || offset < 0
+                || offset + (long) blocks * Disk.blockSize > buffer.length)
+            return false;
+        byte[][] sectors = new byte[blocks][Disk.blockSize];
+        if (!read(consecutive(blockId, blocks), sectors))
+            return false;
+        for (int i = 0; i < blocks; i++)
+            System.arraycopy(sectors[i], 0, buffer, offset + i * Disk.blockSize,
+                    Disk.blockSize);
+        return true;
+    }
+
+    /** ================================ write =================================
+     * Writes one block, returning once the Disk has it
+     *
+     * @param blockId - the disk block to write
+     * @param buffer  - the block contents
+     * @return        - false if blockId is not on the disk
+     * */
+    public boolean write(int blockId, byte[] buffer) {
+        return submit(new Request[] {
+                new Request(WRITE, blockId, buffer, WRITE_DEADLINE) });
+    }
+
+    /** ================================ write =================================
+     * Writes several blocks, queueing them together so adjacent ones go out
+     * as one transfer, and returns once the Disk has all of them
+     *
+     * @param blockIds - the disk blocks to write
+     * @param buffers  - buffers[i] holds the contents of blockIds[i]
+     * @return         - false, writing nothing, if a block is not on the disk
+     * */
+    public boolean write(int[] blockIds, byte[][] buffers) {
+        return submit(requests(WRITE, blockIds, buffers, WRITE_DEADLINE));
+    }
+
+    /** ================================ write =================================
+     * Writes a run of consecutive blocks from buffer at offset, queueing them
+     * together so they go out as one transfer
+     *
+     * @param blockId - the first disk block of the run
+     * @param blocks  - the number of blocks in the run
+     * @param buffer  - holds the blocks back to back
+     * @param offset  - where in buffer the first block starts
+     * @return        - false, writing nothing, if the run or buffer are
+     *                  invalid or the run runs off the disk
+     * */
+    public boolean write(int blockId, int blocks, byte[] buffer, int offset) {
+        if (blocks < 1 || buffer == null || offset < 0
+                || offset + (long) blocks * Disk.blockSize > buffer.length)
+            return false;
+        byte[][] sectors = new byte[blocks][Disk.blockSize];
+        for (int i = 0; i < blocks; i++)
+            System.arraycopy(buffer, offset + i * Disk.blockSize, sectors[i], 0,
+                    Disk.blockSize);
+        return write(consecutive(blockId, blocks), sectors);
+    }
+
+    /** ================================= sync =================================
+     * Syncs the Disk to its file once every request queued so far is done
+     * */
+    public void sync() {
+        submit(new Request[] { new Request(SYNC, -1, null, WRITE_DEADLINE) });
+    }
+
+    /** =============================== diskDone ===============================
+     * Called on each disk interrupt, waking the dispatcher
+     * */
+    public synchronized void diskDone() {
+        interrupted = true;
+        notifyAll();
+    }
+
+    /** ============================= consecutive ==============================
+     * @return - the block ids of a run of consecutive blocks
+     * */
+    private int[] consecutive(int blockId, int blocks) {
+        int[] blockIds = new int[blocks];
+        for (int i = 0; i < blocks; i++)
+            blockIds[i] = blockId + i;
+        return blockIds;
+    }
+
+    /** =============================== requests ===============================
+     * Builds one request of a kind for each of several blocks
+     * */
+    private Request[] requests(int kind, int[] blockIds, byte[][] buffers,
+                               long wait) {
+        Request[] requests = new Request[blockIds.length];
+        for (int i = 0; i < blockIds.length; i++)
+            requests[i] = new Request(kind, blockIds[i], buffers[i], wait);
+        return requests;
+    }
+
+    /** ================================ submit ================================
+     * Queues requests all at once and sleeps until the dispatcher has finished
+     * every one of them
+     *
+     * @return - false, queueing nothing, if a block is not on the disk
+     * */
+    private boolean submit(Request[] requests) {
+        for (Request request : requests) {
+            if (request.kind != SYNC && (request.blockId < 0
+                    || request.blockId >= totalBlocks))
+                return false;
+        }
+        if (mapped != null) {
+            for (Request request : requests) {
+                if (request.kind == READ)
+                    mapped.read(request.blockId, request.buffer);
+                else if (request.kind == WRITE)
+                    mapped.write(request.blockId, request.buffer);
+                else
+                    mapped.sync();
+            }
+            return true;
+        }
+        synchronized (this) {
+            for (Request request : requests)
+                queue.addLast(request);
+            notifyAll();
+        }
+        for (Request request : requests) {
+            synchronized (request) {
+                while (!request.done) {
+                    try {
+                        request.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /** ================================= run ==================================
+     * The dispatcher, which takes the next transfer and issues its blocks
+     * */
+    public void run() {
+        while (true) {
+            LinkedList<Request> transfer = take();
+            for (Request request : transfer) {
+                issue(request);
+                synchronized (request) {
+                    request.done = true;
+                    request.notify();
+                }
+            }
+        }
+    }
+
+    /** ================================= take =================================
+     * Waits for a request, then removes the one the order picks together with
+     * the pending requests of its kind for the blocks straight after it
+     *
+     * @return - the requests to issue back to back, in block order
+     * */
+    private synchronized LinkedList<Request> take() {
+        while (queue.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+
+        LinkedList<Request> transfer = new LinkedList<Request>();
+        Request first = pick();
+        queue.remove(first);
+        transfer.add(first);
+        if (first.kind == SYNC)
+            return transfer;
+
+        for (int next = first.blockId + 1; transfer.size() < MAX_MERGE;
+                next++) {
+            Request adjacent = null;
+            for (Request request : queue) {
+                if (request.kind == SYNC)
+                    break;          // the barrier
+                if (request.kind == first.kind && request.blockId == next) {
+                    adjacent = request;
+                    break;
+                }
+            }
+            if (adjacent == null)
+                break;
+            queue.remove(adjacent);
+            transfer.add(adjacent);
+        }
+        return transfer;
+    }
+
+    /** ================================= pick =================================
+     * Chooses the next request by the queue's order, among those queued
+     * before the first pending sync
+     *
+     * @return - the request to serve next
+     * */
+    private Request pick() {
+        Request oldest = queue.getFirst();
+        if (order == FIFO || oldest.kind == SYNC)
+            return oldest;
+        if (order == DEADLINE) {
+            long now = System.currentTimeMillis();
+            for (Request request : queue) {
+                if (request.kind == SYNC)
+                    break;
+                if (request.deadline <= now)
+                    return request;     // arrival order, so the most overdue
+            }
+        }
+
+        // C-LOOK: the nearest block at or past the head, else the lowest
+        Request ahead = null;
+        Request lowest = null;
+        for (Iterator<Request> it = queue.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            if (request.kind == SYNC)
+                break;
+            if (request.blockId >= head
+                    && (ahead == null || request.blockId < ahead.blockId))
+                ahead = request;
+            if (lowest == null || request.blockId < lowest.blockId)
+                lowest = request;
+        }
+        return (ahead != null) ? ahead : lowest;
+    }
+
+    /** ================================ issue =================================
+     * Hands one request to the Disk and waits for it to finish. The Disk
+     * refuses a request while busy, and either way raises an interrupt once
+     * it is done.
+     * */
+    private void issue(Request request) {
+        if (request.kind == SYNC) {
+            while (disk.sync() == false)
+                awaitInterrupt();
+        } else if (request.kind == READ) {
+            while (disk.read(request.blockId, request.buffer) == false)
+                awaitInterrupt();
+            head = request.blockId;
+        } else {
+            while (disk.write(request.blockId, request.buffer) == false)
+                awaitInterrupt();
+            head = request.blockId;
+        }
+        while (disk.testAndResetReady() == false)
+            awaitInterrupt();
+    }
+
+    /** ============================ awaitInterrupt ============================
+     * Sleeps until the next disk interrupt, or a little while in case one
+     * came before the Disk was polled
+     * */
+    private synchronized void awaitInterrupt() {
+        if (!interrupted) {
+            try {
+                wait(INTERRUPT_WAIT);
+            } catch (InterruptedException e) {
+            }
+        }
+        interrupted = false;
+    }
+}
@@ -10,56 +10,190 @@
  * ThreadOS system.
  * */
 
+import java.util.Arrays;
+
 public class FileSystem extends Thread {
-    private final int  BLOCK_SIZE = 512;
+    private final int  MAX_RUN_BYTES = 32768;    // most moved in one request
+    private final int  MIN_READ_AHEAD = 4;  // first read-ahead window
+    private final int  MAX_READ_AHEAD_BYTES = 32768; // largest window
+    private int        blockSize;  // the block size the disk is formatted with
+    private int        maxRun;     // most blocks moved in one request
+    private int        maxReadAhead; // largest read-ahead window in blocks
+    private Journal    journal;
     private Superblock superBlock;
     private Directory  directory;
+    private InodeTable inodes;
     private FileTable  fileTable;
+    private Inode      dirInode;   // the root inode, whose data holds the
+                                   // directory pages
+    private ReadAhead  readAhead;  // prefetches for sequential readers
 
     /** ============================= Constructor ==============================
      * Single parameter constructor
      *
-     * 1.) Creates the SuperBlock, Directory, FileTable
-     * 2.) Reconstructs the directory
+     * 1.) Creates the Journal, SuperBlock (which replays the journal),
+     *     Directory, InodeTable, FileTable
+     * 2.) Reconstructs the directory, reading only its live pages
      *
-     * @param diskSize - diskSize, the size of the disk, used to construct the
-     *                   superblock
+     * @param diskSize - diskSize, the number of Disk blocks on the disk, used
+     *                   to construct the superblock
      * */
     public FileSystem(int diskSize) {
-        // superblock, directory, filetable
-        superBlock = new Superblock(diskSize);
-        directory = new Directory( superBlock.totalInodes );
-        fileTable = new FileTable( directory );
+        // journal, superblock, directory, inode table, filetable
+        journal = new Journal();
+        superBlock = new Superblock(diskSize, journal);
+        geometry();
+        directory = new Directory( superBlock );
+        inodes = new InodeTable(journal, superBlock);
+        fileTable = new FileTable( directory, inodes );
+        readAhead = new ReadAhead();
+        dirInode = inodes.iget((short) 0);   // held for as long as we run
 
         // reconstruct directory
-        FileTableEntry dirEnt = open("/","r");
-        int dirSize = fsize(dirEnt);
-        if (dirSize > 0) {
-            byte[] dirData = new byte[dirSize];
-            read(dirEnt, dirData);
-            directory.bytes2directory(dirData);
+        byte[] block = new byte[blockSize];
+        if (dirInode.length > 0) {
+            if (directory.bytes2header(readPage(0, block))) {
+                for (int p = 1; p <= directory.pages(); p++) {
+                    if (!directory.isLivePage(p))
+                        continue;   // empty pages are never read
+                    directory.bytes2page(p, readPage(p, block));
+                }
+                directory.reindex();
+            }
         }
-        close(dirEnt);
     }
 
-    //I don't think I need this
+    /** =============================== geometry ===============================
+     * Sizes the transfers and read-ahead windows, which are in blocks, for
+     * the block size the disk was formatted with
+     * */
+    private void geometry() {
+        blockSize = Volume.blockSize();
+        maxRun = Math.max(1, MAX_RUN_BYTES / blockSize);
+        maxReadAhead = Math.max(MIN_READ_AHEAD,
+                MAX_READ_AHEAD_BYTES / blockSize);
+    }
+
+    /** =============================== readPage ===============================
+     * Reads one directory page out of the block of the root inode holding it.
+     * Pages are Directory.PAGE_SIZE bytes, so a large block holds several.
+     *
+     * @param page  - the directory page number
+     * @param block - scratch space for the block
+     * @return      - the page contents
+     * */
+    private byte[] readPage(int page, byte[] block) {
+        int offset = page * Directory.PAGE_SIZE;
+        journal.read(dirInode.findTargetBlock(offset), block);
+        return Arrays.copyOfRange(block, offset % blockSize,
+                offset % blockSize + Directory.PAGE_SIZE);
+    }
+
+    /** ================================= sync =================================
+     * Called by the Kernel on SysLib.sync() before the buffer cache is written
+     * back. Commits any metadata still only in memory and checkpoints the
+     * journal so every home location is up to date.
+     * */
     void sync(){
-        // actual functionality of synching directory to disk is performed
-        // elsewhere
+        journal.begin();
+        commit();
+        journal.checkpoint();
+    }
+
+    /** ============================= flushInodes ==============================
+     * Called outside any transaction after opening or closing a file for
+     * reading, which dirties its inode without logging it. Once too many
+     * inodes are dirty, writes them back in a transaction of its own.
+     * */
+    private void flushInodes() {
+        if (inodes.crowded()) {
+            journal.begin();
+            commit();
+        }
+    }
+
+    /** ================================ commit ================================
+     * Logs every metadata block changed in memory into the running journal
+     * transaction and leaves it. Every syscall that changes metadata calls
+     * journal.begin() first and this last, so its updates commit atomically
+     * together with those of any syscalls that overlapped it.
+     * */
+    private void commit() {
+        syncDirectory();
+        inodes.sync();
+        superBlock.sync();
+        journal.end();
+    }
+
+    /** ============================ syncDirectory =============================
+     * Logs the directory pages changed since the last commit, growing the root
+     * inode by a block whenever the directory gains a page its blocks cannot
+     * hold. A single create or delete only changes the one page holding its
+     * entry, and so the one block holding that page.
+     * */
+    private void syncDirectory() {
+        byte[] block = new byte[blockSize];
+        synchronized (directory) {
+            for (int p = directory.nextDirtyPage(0); p >= 0;
+                    p = directory.nextDirtyPage(p + 1)) {
+                int offset = p * Directory.PAGE_SIZE;
+                int blockID = dirInode.findTargetBlock(offset);
+                if (blockID < 0) {
+                    blockID = superBlock.getFreeBlock();
+                    if (blockID < 0)
+                        break;     // disk full, the pages stay dirty
+                    if (registerBlock(dirInode, offset, blockID) != 0) {
+                        superBlock.returnBlock(blockID);
+                        break;
+                    }
+                    Arrays.fill(block, (byte) 0);
+                } else if (Directory.PAGE_SIZE < blockSize) {
+                    journal.read(blockID, block); // keep the other pages
+                }
+                System.arraycopy(directory.page2bytes(p), 0, block,
+                        offset % blockSize, Directory.PAGE_SIZE);
+                journal.write(blockID, block);
+                if (dirInode.length < offset + Directory.PAGE_SIZE) {
+                    dirInode.length = offset + Directory.PAGE_SIZE;
+                    inodes.markDirty((short) 0);
+                }
+            }
+            dirInode.flushIndexBlock();
+        }
     }
 
     /** ================================ format ================================
      * Precondition:  Doesn't particularly matter, as it overwrites existing
-     * Postcondition: The supberblock, directory, and filetable are all erased
-     *                and replaced with new instances.
+     * Postcondition: The supberblock, directory, inode table and filetable
+     *                are all erased and replaced with new instances.
      *
-     * @param files - the number of files and corresponding inodes to be
-     *                allocated for by the superblock
+     * @param files - the number of inodes the superblock reserves up front.
+     *                The inode table grows past it as files are created.
      * */
     boolean format (int files) {
-        superBlock.sbFormat(files);
-        directory = new Directory(superBlock.totalInodes);
-        fileTable = new FileTable(directory);
+        return format(files, 0, Volume.blockSize());
+    }
+
+    /** ================================ format ================================
+     * Precondition:  Doesn't particularly matter, as it overwrites existing
+     * Postcondition: The disk holds an empty file system of the given size
+     *                and block size, and everything in memory is replaced.
+     *
+     * @param files     - the number of inodes reserved up front
+     * @param blocks    - the number of blocks in the file system, or 0 for as
+     *                    many as the disk holds
+     * @param blockSize - the block size in bytes, a power of two from 512
+     *                    bytes to 64 KB
+     * @return          - false if the file system would not fit the disk
+     * */
+    boolean format (int files, int blocks, int blockSize) {
+        if (!superBlock.sbFormat(files, blocks, blockSize))
+            return false;
+        geometry();
+        directory = new Directory(superBlock);
+        inodes = new InodeTable(journal, superBlock);
+        fileTable = new FileTable(directory, inodes);
+        dirInode = inodes.iget((short) 0);
         return true;
     }
 
@@ -71,12 +205,19 @@ public class FileSystem extends Thread {
      * @param     mode - the mode (eg. read, write...) to open in
      * */
     public FileTableEntry open(String filename, String mode) {
+        // falloc may wait on other threads, so it runs outside a transaction
         FileTableEntry ftEnt = fileTable.falloc(filename, mode);
-        if (mode.equals("w")){
-            if (deallocAllBlocks( ftEnt ) == false)
-                return null;
+        if (ftEnt == null || mode.equals("r")) {
+            flushInodes();
+            return ftEnt;
         }
-        return ftEnt;
+
+        journal.begin();
+        boolean ok = true;
+        if (mode.equals("w"))
+            ok = deallocAllBlocks( ftEnt );
+        commit();
+        return ok ? ftEnt : null;
     }
 
 
@@ -87,12 +228,31 @@ public class FileSystem extends Thread {
      * @param ftEnt - The FileTableEntry of the file that is to be closed
      * */
     public boolean close (FileTableEntry ftEnt) {
-        // decrement file usage by...
+        if (ftEnt.mode.equals("r")) {
+            boolean ok = release(ftEnt);   // nothing worth logging
+            flushInodes();
+            return ok;
+        }
+
+        journal.begin();
+        boolean ok = release(ftEnt);
+        commit();
+        return ok;
+    }
+
+    /** =============================== release ================================
+     * Drops one user of a file table entry, freeing it with the last one. Used
+     * by close() and, inside its own transaction, by delete()
+     *
+     * @param ftEnt - The FileTableEntry being released
+     * */
+    private boolean release (FileTableEntry ftEnt) {
+        // decrement file usage, the inode count drops in ffree
         ftEnt.count--;       // decrement file count
-        ftEnt.inode.count--; // decrement inode count
 
         // if file not in use, remove from fileTable
         if (ftEnt.count <= 0) {
+            ftEnt.inode.ranges.unlockAll(ftEnt);
             return fileTable.ffree(ftEnt);
         }
         return true;
@@ -119,36 +279,159 @@ public class FileSystem extends Thread {
      * possible and puts them in buffer. Increments seek pointer by number of
      * bytes read. Returns number of bytes read or -1 on error.
      *
+     * Afterwards the blocks just past the seek pointer are queued for
+     * read-ahead if the file is being read sequentially.
+     *
      * @param    fte - The filetable entry to be read
      * @param buffer - A buffer for the data being read
      * @return       - The amount of data being read
      * */
     public int read(FileTableEntry fte, byte[] buffer) {
-        //can't read if mode isn't read or read/write (w+)
-        if (fte == null || (fte.mode.equals("r")
-                || fte.mode.equals("w+")) == false)
+        return readv(fte, new byte[][] { buffer });
+    }
+
+    /** ================================ readv =================================
+     * Reads into several buffers in turn as a single read, so the pieces are
+     * filled back to back from the seek pointer and block boundaries are
+     * handled once across the whole vector rather than per buffer
+     *
+     * @param     fte - The filetable entry to be read
+     * @param buffers - The buffers to fill, in order
+     * @return        - The amount of data read across all of them
+     * */
+    public int readv(FileTableEntry fte, byte[][] buffers) {
+        //can't read if mode isn't read or read/write (w+ or rw)
+        if (fte == null || (fte.mode.equals("r") || fte.mode.equals("w+")
+                || fte.mode.equals("rw")) == false)
+            return -1;
+        int length = vectorLength(buffers);
+        synchronized (fte) {   // the seek pointer is shared
+            int start = fte.seekPtr;
+            int bytesRead;
+            fte.inode.ranges.hold(fte, start, length, false);
+            try {
+                bytesRead = readBlocks(fte, buffers, start);
+            } finally {
+                fte.inode.ranges.drop(fte, start, length, false);
+            }
+            if (bytesRead > 0)
+                fte.seekPtr = start + bytesRead;
+            readAhead(fte, start);
+            return bytesRead;
+        }
+    }
+
+    /** ================================ pread =================================
+     * Reads into buffer from the given file offset without using or moving
+     * the seek pointer, so threads sharing an entry can read at random places
+     * in parallel without seeking first
+     *
+     * @param    fte - The filetable entry to be read
+     * @param buffer - A buffer for the data being read
+     * @param offset - The file offset to read from
+     * @return       - The amount of data read, or -1 on error
+     * */
+    public int pread(FileTableEntry fte, byte[] buffer, int offset) {
+        if (fte == null || (fte.mode.equals("r") || fte.mode.equals("w+")
+                || fte.mode.equals("rw")) == false || offset < 0)
+            return -1;
+        byte[][] buffers = { buffer };
+        int length = vectorLength(buffers);
+        fte.inode.ranges.hold(fte, offset, length, false);
+        try {
+            return readBlocks(fte, buffers, offset);
+        } finally {
+            fte.inode.ranges.drop(fte, offset, length, false);
+        }
+    }
+
+    /** ============================== readBlocks ==============================
+     * The body of readv() and pread(). Whole blocks are read straight into the
+     * buffers, a run of blocks that are consecutive on the disk at a time, and
+     * only a partial head or tail block goes through a scratch block.
+     *
+     * @param     fte - The filetable entry to be read
+     * @param buffers - The buffers to fill, in order
+     * @param     pos - The file offset to start reading at
+     * @return        - The amount of data read, or -1 on error
+     * */
+    private int readBlocks(FileTableEntry fte, byte[][] buffers, int pos) {
+        int total = vectorLength(buffers);
+        if (total < 0)
             return -1;
         int bytesRead = 0;
-        int bufferLen = buffer.length;
-        int fileLen = fsize(fte);
-
-        while (bytesRead < bufferLen && fte.seekPtr < fileLen) {
-            byte[] tempCache = new byte[BLOCK_SIZE];
-            short blockID = fte.inode.findTargetBlock(fte.seekPtr);
-            SysLib.rawread(blockID, tempCache);
-
-            int readPos = fte.seekPtr%BLOCK_SIZE;
-            for (; readPos < tempCache.length && bytesRead < bufferLen
-                    && fte.seekPtr < fileLen; readPos++) {
-                buffer[bytesRead] = tempCache[readPos];
-                bytesRead++;
-                fte.seekPtr++;
+        int wanted = Math.min(total, fsize(fte) - pos);
+        byte[] block = null;
+
+        while (bytesRead < wanted) {
+            int blockID = fte.inode.findTargetBlock(pos);
+            if (blockID < 0)
+                break;     // unmapped, nothing more to read
+            int readPos = pos % blockSize;
+            int left = wanted - bytesRead;
+            int[] at = locate(buffers, bytesRead);
+            int inPiece = (buffers[at[0]].length - at[1]) / blockSize;
+            int n;
+
+            if (readPos != 0 || left < blockSize || inPiece == 0) {
+                // partial head or tail block, or one split between pieces
+                if (block == null)
+                    block = new byte[blockSize];
+                Volume.read(blockID, block);
+                n = Math.min(blockSize - readPos, left);
+                scatter(block, readPos, buffers, bytesRead, n);
+            } else {
+                int blocks = fte.inode.contiguousBlocks(pos,
+                        Math.min(Math.min(left / blockSize, inPiece),
+                                maxRun));
+                Volume.read(blockID, blocks, buffers[at[0]], at[1]);
+                n = blocks * blockSize;
             }
+            bytesRead += n;
+            pos += n;
         }
 
         return bytesRead;
     }
 
+    /** ============================== readAhead ===============================
+     * Grows the read-ahead window of a file read sequentially, doubling it up
+     * to maxReadAhead blocks each time a read picks up where the last one
+     * left off, and queues prefetches for the window past the seek pointer.
+     * New prefetches are only issued once the reader has consumed half of
+     * what was fetched ahead, so they overlap the reader instead of trailing
+     * it. seek() shrinks the window again.
+     *
+     * @param fte   - the filetable entry just read
+     * @param start - where that read started
+     * */
+    private void readAhead(FileTableEntry fte, int start) {
+        if (start == fte.nextRead)
+            fte.raWindow = (fte.raWindow == 0) ? MIN_READ_AHEAD
+                    : Math.min(fte.raWindow * 2, maxReadAhead);
+        fte.nextRead = fte.seekPtr;
+        if (fte.raWindow == 0)
+            return;
+
+        int next = fte.seekPtr / blockSize;
+        int last = (fsize(fte) + blockSize - 1) / blockSize;
+        int limit = Math.min(next + fte.raWindow, last);
+        int from = Math.max(next, fte.raEnd);
+        if (from - next > fte.raWindow / 2)
+            return;     // still well ahead of the reader
+
+        while (from < limit) {
+            int blockID = fte.inode.findTargetBlock(from * blockSize);
+            int blocks = fte.inode.contiguousBlocks(from * blockSize,
+                    limit - from);
+            if (blockID < 0 || blocks <= 0)
+                break;
+            readAhead.request(blockID, blocks);
+            from += blocks;
+        }
+        fte.raEnd = from;
+    }
+
     /** ================================ write =================================
      * Precondition:  There is a space in the FileSystem for the file that the
      *                user intends to write to it.
@@ -163,68 +446,361 @@ public class FileSystem extends Thread {
      * @return       - The amount of data being written in bytes
      * */
     public int write(FileTableEntry fte, byte[] buffer) {
-        int bufferLength = buffer.length;
-        int prevFileLength = this.fsize(fte);
-        int block = 512;
-        int written = 0;
+        return writev(fte, new byte[][] { buffer });
+    }
 
-        if (fte == null || fte.mode == "r")
+    /** ================================ writev ================================
+     * Writes several buffers in turn as a single write, in one journal
+     * transaction. The pieces land back to back from the seek pointer, so
+     * small adjacent pieces such as a header and its payload share a single
+     * block write.
+     *
+     * @param     fte - The filetable entry to be written
+     * @param buffers - The buffers to write, in order
+     * @return        - The amount of data written across all of them
+     * */
+    public int writev(FileTableEntry fte, byte[][] buffers) {
+        if (fte == null || "r".equals(fte.mode) || vectorLength(buffers) < 0)
             return -1; // don't write
 
-        synchronized (fte) {
-            while (0 < bufferLength) {
-                int loc = fte.inode.findTargetBlock(fte.seekPtr);
-
-                // For null location
-                if (loc == -1) {
-                    short newFreeBlockLoc =
-                            (short)(this.superBlock.getFreeBlock());
-                    int result = fte.inode.registerTargetBlock(fte.seekPtr,
-                            newFreeBlockLoc);
-
-                    if (result == -3) {
-                        short nxtFreeBlock =
-                                (short)(this.superBlock.getFreeBlock());
-                        if (!fte.inode.setIndexBlock(nxtFreeBlock))
-                            return -1;
-                        if (fte.inode.registerTargetBlock(fte.seekPtr,
-                                newFreeBlockLoc) != 0)
-                            return -1;
-                    } else if (result != 0) {
-                        return -1;
-                    }
-                    loc = newFreeBlockLoc;
+        int length = vectorLength(buffers);
+        try {
+            synchronized (fte) {   // the seek pointer is shared
+                // hold the range before joining a transaction, whose end()
+                // would otherwise wait on other entries' holders in turn
+                int start = fte.seekPtr;
+                fte.inode.ranges.hold(fte, start, length, true);
+                journal.begin();
+                try {
+                    int written = writeBlocks(fte, buffers, start);
+                    if (written > 0)
+                        fte.seekPtr = start + written;
+                    return written;
+                } finally {
+                    fte.inode.ranges.drop(fte, start, length, true);
                 }
+            }
+        } finally {
+            // outside the fte lock, since end() may wait for other writers
+            commit();
+        }
+    }
+
+    /** ================================ pwrite ================================
+     * Writes buffer at the given file offset without using or moving the
+     * seek pointer. The offset may be anywhere up to the end of the file, but
+     * not past it, since files cannot have holes.
+     *
+     * @param    fte - The filetable entry to be written
+     * @param buffer - A buffer for the data being written
+     * @param offset - The file offset to write at
+     * @return       - The amount of data written, or -1 on error
+     * */
+    public int pwrite(FileTableEntry fte, byte[] buffer, int offset) {
+        if (fte == null || "r".equals(fte.mode) || buffer == null || offset < 0
+                || offset > fsize(fte))
+            return -1; // don't write
+
+        fte.inode.ranges.hold(fte, offset, buffer.length, true);
+        journal.begin();
+        try {
+            return writeBlocks(fte, new byte[][] { buffer }, offset);
+        } finally {
+            fte.inode.ranges.drop(fte, offset, buffer.length, true);
+            commit();
+        }
+    }
 
-                byte[] temp = new byte[block];
-                SysLib.rawread(loc, temp);
-                int ptr = fte.seekPtr % block;
-                int leftovers = block - ptr;
-
-                // setup
-                int increment = leftovers;
-                int set = bufferLength - leftovers;
-                if (leftovers > bufferLength) {
-                    increment = bufferLength;
-                    set = 0;
+    /** ================================= lock =================================
+     * Locks a byte range of the file for fte, waiting until no other entry
+     * holds a conflicting lock on it. Reads and writes by other entries then
+     * wait for the range, so threads sharing a file opened "rw" can update
+     * disjoint parts of it at the same time.
+     *
+     * @param       fte - The filetable entry taking the lock
+     * @param    offset - The first byte locked
+     * @param    length - The number of bytes locked, 0 for the rest of the file
+     * @param exclusive - true to keep out every other entry, false to only
+     *                    keep out writers
+     * @return          - 0 on success, -1 on error
+     * */
+    public int lock(FileTableEntry fte, int offset, int length,
+                    boolean exclusive) {
+        if (fte == null)
+            return -1;
+        return fte.inode.ranges.lock(fte, offset, length, exclusive) ? 0 : -1;
+    }
+
+    /** ================================ unlock ================================
+     * Unlocks whatever fte holds of a byte range, waking entries waiting on it
+     *
+     * @param    fte - The filetable entry giving up the range
+     * @param offset - The first byte unlocked
+     * @param length - The number of bytes unlocked, 0 for the rest of the file
+     * @return       - 0 on success, -1 on error
+     * */
+    public int unlock(FileTableEntry fte, int offset, int length) {
+        if (fte == null)
+            return -1;
+        return fte.inode.ranges.unlock(fte, offset, length) ? 0 : -1;
+    }
+
+    /** ============================= writeBlocks ==============================
+     * The body of writev() and pwrite(), run inside the caller's journal
+     * transaction. Every block the write reaches is mapped first, and then the
+     * data is copied in. The inode is only held while its mapping changes and
+     * while a partial head or tail block is read back and rewritten, since a
+     * neighbouring write may share that block. Whole blocks are written after
+     * letting go of it, straight from the buffers a contiguous run at a time,
+     * so writers to disjoint regions of the file overlap their disk I/O.
+     *
+     * @param     fte - The filetable entry to be written
+     * @param buffers - The buffers holding the data being written
+     * @param     pos - The file offset to start writing at
+     * @return        - The amount of data being written in bytes
+     * */
+    private int writeBlocks(FileTableEntry fte, byte[][] buffers, int pos) {
+        Inode inode = fte.inode;
+        int end;        // where the write stops, short of a full disk
+        int first;      // the whole blocks written unlocked lie in
+        int last;       // [first, last)
+
+        synchronized (inode) {
+            int fresh = inode.mappedBlocks(); // blocks from here on are new
+            end = allocateBlocks(inode, pos + vectorLength(buffers));
+            if (end < 0)
+                return -1;
+
+            first = pos;
+            last = end;
+            if (pos < end
+                    && (pos % blockSize != 0 || end - pos < blockSize)) {
+                first = Math.min(end, (pos / blockSize + 1) * blockSize);
+                writePartial(inode, buffers, 0, pos, first - pos, fresh);
+            }
+            if (last > first && last % blockSize != 0) {
+                last -= last % blockSize;
+                writePartial(inode, buffers, last - pos, last, end - last,
+                        fresh);
+            }
+        }
+
+        byte[] temp = null;
+        int written = first - pos;
+        for (int at = first; at < last; ) {
+            int loc = inode.findTargetBlock(at);
+            int[] piece = locate(buffers, written);
+            int inPiece = (buffers[piece[0]].length - piece[1]) / blockSize;
+            int increment;
+
+            if (inPiece == 0) {
+                // a whole block split between pieces, nothing is read
+                if (temp == null)
+                    temp = new byte[blockSize];
+                gather(buffers, written, temp, 0, blockSize);
+                Volume.write(loc, temp);
+                increment = blockSize;
+            } else {
+                // whole blocks are overwritten, so nothing is read
+                int blocks = inode.contiguousBlocks(at,
+                        Math.min(Math.min((last - at) / blockSize, inPiece),
+                                maxRun));
+                Volume.write(loc, blocks, buffers[piece[0]], piece[1]);
+                increment = blocks * blockSize;
+            }
+            at += increment;
+            written += increment;
+        }
+
+        synchronized (inode) {
+            if (end > inode.length)
+                inode.length = end;
+        }
+        inodes.markDirty(fte.iNumber);
+        return end - pos;
+    }
+
+    /** ============================= writePartial =============================
+     * Copies part of one block in, keeping whatever the rest of it already
+     * holds, unless it was just allocated and so holds nothing worth keeping.
+     * Called holding the inode.
+     *
+     * @param   inode - the inode being written
+     * @param buffers - the buffers holding the data being written
+     * @param    from - where in the buffers the part starts
+     * @param     pos - the file offset of the part
+     * @param  length - the length of the part, which stays inside one block
+     * @param   fresh - the first block allocated by this write
+     * */
+    private void writePartial(Inode inode, byte[][] buffers, int from,
+                              int pos, int length, int fresh) {
+        byte[] temp = new byte[blockSize];
+        int loc = inode.findTargetBlock(pos);
+        if (pos / blockSize < fresh)
+            Volume.read(loc, temp);
+        gather(buffers, from, temp, pos % blockSize, length);
+        Volume.write(loc, temp);
+    }
+
+    /** ============================= vectorLength =============================
+     * @param buffers - a vector of buffers
+     * @return        - their combined length, or -1 if any is missing
+     * */
+    private static int vectorLength(byte[][] buffers) {
+        if (buffers == null)
+            return -1;
+        int total = 0;
+        for (byte[] piece : buffers) {
+            if (piece == null)
+                return -1;
+            total += piece.length;
+        }
+        return total;
+    }
+
+    /** ================================ locate ================================
+     * @param buffers - a vector of buffers
+     * @param pos     - a position within their combined length
+     * @return        - the index of the buffer holding pos and pos's offset
+     *                  within it
+     * */
+    private static int[] locate(byte[][] buffers, int pos) {
+        int i = 0;
+        while (pos >= buffers[i].length) {
+            pos -= buffers[i].length;
+            i++;
+        }
+        return new int[] { i, pos };
+    }
+
+    /** ================================ gather ================================
+     * Copies n bytes of a vector of buffers, from position pos of their
+     * combined length on, into dst at off
+     * */
+    private static void gather(byte[][] buffers, int pos, byte[] dst, int off,
+                               int n) {
+        for (int i = 0; n > 0; i++) {
+            if (pos >= buffers[i].length) {
+                pos -= buffers[i].length;
+                continue;
+            }
+            int k = Math.min(n, buffers[i].length - pos);
+            System.arraycopy(buffers[i], pos, dst, off, k);
+            off += k;
+            n -= k;
+            pos = 0;
+        }
+    }
+
+    /** =============================== scatter ================================
+     * Copies n bytes of src from off on into a vector of buffers, from
+     * position pos of their combined length on
+     * */
+    private static void scatter(byte[] src, int off, byte[][] buffers, int pos,
+                                int n) {
+        for (int i = 0; n > 0; i++) {
+            if (pos >= buffers[i].length) {
+                pos -= buffers[i].length;
+                continue;
+            }
+            int k = Math.min(n, buffers[i].length - pos);
+            System.arraycopy(src, off, buffers[i], pos, k);
+            off += k;
+            n -= k;
+            pos = 0;
+        }
+    }
+
+    /** ============================ allocateBlocks ============================
+     * Maps every block up to the file offset end that is not mapped yet,
+     * reserving one contiguous run for all of them up front where it can
+     *
+     * @param inode - the inode being written
+     * @param end   - the file offset the write ends at
+     * @return      - the offset up to which the file is now backed, short of
+     *                end if the disk filled up, or -1 on error
+     * */
+    private int allocateBlocks(Inode inode, int end) {
+        int runStart = -1; // contiguous blocks reserved for this write
+        int runLeft = 0;
+
+        try {
+            for (int offset = inode.mappedBlocks() * blockSize; offset < end;
+                    offset += blockSize) {
+                if (runLeft == 0) {
+                    runLeft = blocksToAllocate(offset, end - offset);
+                    runStart = superBlock.getFreeBlocks(runLeft);
+                    // fall back to shorter runs if space is fragmented
+                    while (runStart < 0 && runLeft > 1) {
+                        runLeft /= 2;
+                        runStart = superBlock.getFreeBlocks(runLeft);
+                    }
+                    if (runStart < 0) {
+                        runLeft = 0;
+                        break;     // disk full, keep what fits
+                    }
                 }
-                // logic
-                System.arraycopy(buffer, written, temp, ptr, increment);
-                SysLib.rawwrite(loc, temp);
-                fte.seekPtr += increment;
-                written += increment;
-                bufferLength = set;
+                if (registerBlock(inode, offset, runStart) != 0)
+                    return -1;
+                runStart++;
+                runLeft--;
             }
+        } finally {
+            // new index blocks reach the disk once per write call
+            inode.flushIndexBlock();
+            // give back any reserved blocks an error left unused
+            while (runLeft > 0)
+                superBlock.returnBlock(runStart + --runLeft);
+        }
+        return Math.min(end, inode.mappedBlocks() * blockSize);
+    }
 
-            if (fte.seekPtr > prevFileLength)
-                fte.inode.length = fte.seekPtr;
+    /** ============================ registerBlock =============================
+     * Maps a newly allocated block into an inode, allocating whatever index
+     * blocks its extent table needs along the way
+     *
+     * @param inode   - the inode to extend
+     * @param offset  - the file offset of the new block
+     * @param blockID - the new block
+     * @return        - 0 on success, else registerTargetBlock()'s error
+     * */
+    private int registerBlock(Inode inode, int offset, int blockID) {
+        int result = inode.registerTargetBlock(offset, blockID);
+        while (result == -3) {
+            int indexBlock = superBlock.getFreeBlock();
+            if (indexBlock < 0 || !inode.setIndexBlock(indexBlock)) {
+                superBlock.returnBlock(indexBlock);
+                return -1;
+            }
+            result = inode.registerTargetBlock(offset, blockID);
         }
+        return result;
+    }
 
-        return written;
+    /** =========================== blocksToAllocate ===========================
+     * The number of blocks a write of length bytes at offset touches, capped
+     * at the number of blocks a file can address
+     *
+     * @param offset - the file offset the write starts at
+     * @param length - the number of bytes being written
+     * @return       - the number of blocks to allocate
+     * */
+    private int blocksToAllocate(int offset, int length) {
+        int blocks = (offset % blockSize + length + blockSize - 1)
+                / blockSize;
+        return Math.min(blocks, Inode.maxBlocks() - offset / blockSize);
+    }
+
+    /** ============================== freeBlocks ==============================
+     * @return - the number of unallocated blocks on the disk
+     * */
+    public int freeBlocks() {
+        return superBlock.freeBlockCount();
     }
 
     /** =========================== deallocAllBlocks ===========================
-     * Postcondition: Absent errors, writes inodes back to the disk
+     * Postcondition: Absent errors, the file is emptied and its inode is marked
+     *                dirty for write back
      *
      * @param ftEnt - The file table entry to deallocate and write back
      * */
@@ -232,31 +808,18 @@ public class FileSystem extends Thread {
         if (ftEnt == null)
             return false;
 
-        short blockID = 0;
-        // deallocate blocks from direct pointers
-        for (int offset = 0; offset < ftEnt.inode.directSize; offset++) {
-            blockID = ftEnt.inode.direct[offset];
-            //nothing to deallocate
-            if (blockID == -1)
-                continue;
-            //else add block to superblock free list and reset
-            superBlock.returnBlock(blockID);
-            ftEnt.inode.direct[offset] = -1;
+        // return every extent to the free space bitmap
+        Inode inode = ftEnt.inode;
+        for (int k = 0; k < inode.extentCount(); k++) {
+            for (int b = 0; b < inode.extentLength(k); b++)
+                superBlock.returnBlock(inode.extentStart(k) + b);
         }
-        byte[] indirectData = ftEnt.inode.unregisterIndexBlock();
-        if (indirectData != null){
-            //add blocks pointed to by the indirect block to the free list
-            for (int offset = 0; offset < BLOCK_SIZE; offset += 2) {
-                blockID = SysLib.bytes2short(indirectData, offset);
-                if (blockID == -1)
-                    break;
-                superBlock.returnBlock(blockID);
-            }
-            //finally, add the indirect block itself back to the free list
-            superBlock.returnBlock(ftEnt.inode.indirect);
-        }
-        //update disk with cleared inode
-        ftEnt.inode.toDisk(ftEnt.iNumber);
+        //finally, add the index blocks themselves back to the free list
+        for (int indexBlock : inode.unregisterIndexBlock())
+            superBlock.returnBlock(indexBlock);
+        //cleared inode is written back lazily by the inode table
+        ftEnt.inode.length = 0;
+        inodes.markDirty(ftEnt.iNumber);
         return true;
     }
 
@@ -270,12 +833,56 @@ public class FileSystem extends Thread {
      * @return         - true if successful, else failure
      * */
     public boolean delete(String filename) {
+        if (directory.getinum(filename) < 0)
+            return false;   // nothing to delete
         FileTableEntry ftEnt = fileTable.falloc(filename, "w");
-        if (deallocAllBlocks(ftEnt) && directory.ifree(ftEnt.iNumber)
-                && close(ftEnt))
-            return true;
+        if (ftEnt == null)
+            return false;
+
+        journal.begin();
+        boolean ok = deallocAllBlocks(ftEnt) && directory.ifree(ftEnt.iNumber);
+        if (ok)
+            ftEnt.inode.markDeleted();   // opens waiting on it give up
+        ok = release(ftEnt) && ok;
+        commit();
         //else one or more of the 3 commands failed
-        return false;
+        return ok;
+    }
+
+    /** ================================ mkdir =================================
+     * Precondition:  The parent of path is an existing directory and nothing
+     *                exists at path yet
+     * Postcondition: An empty directory exists at path
+     *
+     * @param path - the path of the directory to create
+     * @return     - true if successful, else failure
+     * */
+    public boolean mkdir(String path) {
+        journal.begin();
+        short iNumber = directory.mkdir(path);
+        if (iNumber >= 0) {
+            inodes.ialloc(iNumber);   // start from a clean inode
+            inodes.iput(iNumber);
+        }
+        commit();
+        return iNumber >= 0;
+    }
+
+    /** ================================ rmdir =================================
+     * Precondition:  path names an empty directory other than the root
+     * Postcondition: The directory has been removed
+     *
+     * @param path - the path of the directory to remove
+     * @return     - true if successful, else failure
+     * */
+    public boolean rmdir(String path) {
+        short iNumber = directory.getinum(path);
+        if (iNumber <= 0 || !directory.isDirectory(iNumber))
+            return false;
+        journal.begin();
+        boolean ok = directory.ifree(iNumber);
+        commit();
+        return ok;
     }
 
     private final int SEEK_SET = 0;
@@ -317,6 +924,11 @@ public class FileSystem extends Thread {
                 SysLib.cerr("Bad seek whence!");
                 return -1;
         }
+        if (ptr != ftEnt.nextRead) {
+            // a random seek, read ahead less and drop what was queued
+            ftEnt.raWindow /= 2;
+            ftEnt.raEnd = 0;
+        }
         ftEnt.seekPtr = ptr;
         return ptr;
     }
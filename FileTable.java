@@ -6,115 +6,143 @@
  * @date Jun 9, 2019
  *
  * The File Table class holds a collection of file table entries, or
- * descriptions of files, in its vectors, and the file system utilizes it to
- * keep track of everything. It does this through the use of the vecotor (table)
+ * descriptions of files, and the file system utilizes it to keep track of
+ * everything. The entries are split into stripes by inode number, each a set
+ * with its own lock, so opens and closes of different files do not wait on
+ * each other and an entry is removed in constant time. No lock of the table
+ * is held across a directory lookup or an inode read.
  * */
-import java.util.Vector;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileTable {
+    private final static int STRIPES = 16;  // independently locked sets
 
-    private Vector table;         // the file table
+    private HashSet<FileTableEntry>[] table; // the file table, by stripe
+    private AtomicInteger entries;  // entries across every stripe
     private Directory dir;        // the root
+    private InodeTable inodes;    // in-core inodes shared by all entries
 
 
     /** ============================== FileTable ===============================
-     * Basict constructor that instatiates the two private fields
+     * Basict constructor that instatiates the private fields
      *
      * @param directory - the directory from the file system
+     * @param inodes    - the in-core inode table from the file system
      * */
-    public FileTable(Directory directory) {
-        table = new Vector();     // instantiate a file (structure) table
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public FileTable(Directory directory, InodeTable inodes) {
+        table = new HashSet[STRIPES]; // instantiate a file (structure) table
+        for (int i = 0; i < STRIPES; i++)
+            table[i] = new HashSet<FileTableEntry>();
+        entries = new AtomicInteger();
         dir = directory;          // receive a reference to the Directory
+        this.inodes = inodes;     // and the inode table
     }                             // from the file system
 
     /** ================================ falloc ================================
      * Allocates new file table entry for the filename
      * Allocate/retrieve and register the corresponding inode using dir
+     * wait, outside the table's lock, for the inode's reader/writer lock:
+     * shared for "r" and "rw", exclusive for every other mode
      * increment this inode's count
-     * immediately write back this inode to the disk
+     * mark this inode dirty so the inode table writes it back lazily
      * Returns reference to the file table entry
      *
      * @param filename - the specified file's file table entry
      * @return         - the reference to the file table entry
      * */
-    public synchronized FileTableEntry falloc(String filename, String mode) {
+    public FileTableEntry falloc(String filename, String mode) {
         short iNumber = -1;
         Inode inode = null;
 
-        while (true) {
-            iNumber = (filename.equals("/") ? 0 : dir.getinum(filename));
+        // the directory and inode table do their own locking, and a creator
+        // that loses a race for the name simply looks it up again
+        while (inode == null) {
+            iNumber = dir.getinum(filename);
+            if (iNumber >= 0 && dir.isDirectory(iNumber))
+                return null;    // directories are not opened as files
 
-            if (iNumber >= 0) { // else if iNumber represents an existing file
-                inode = new Inode (iNumber);      // retrieve inode from disk
-
-                if (mode.equals("r")) {           // if requesting read
-                    // no need to wait, inode can be shared
-                    if (inode.status == inode.READ) {
-                        break;
-                        // wait for other writer to release status
-                    } else if (inode.status == inode.WRITE) {
-                        try {
-                            wait();
-                        } catch(InterruptedException e) {
-                            return null;
-                        }
-                        return null;
-                    } else if (inode.status == inode.TO_BE_DELETED) { // no view
-                        iNumber = -1;
-                        return null;
-                    } else {  // ( inode.status == inode.USED
-                        // || inode.status == inode.UNUSED)
-                        // inode free, set status to read
-                        inode.status = inode.READ;
-                        break;
-                    }
-                } else {  // requesting mode equals( "w" "w+" or "a" )
-                    if (inode.status == inode.USED
-                            || inode.status == inode.UNUSED) { // file exists,
-                        inode.status = inode.WRITE; // but not active on another
-                        break;                    // process, set status to write
-                    } else { // status is READ or WRITE, wait for file to be free
-                        try {
-                            wait();
-                        } catch(InterruptedException e) {
-                            return null;
-                        }
-                        return null;
-                    }
-                }
+            if (iNumber >= 0) {         // iNumber represents an existing file
+                inode = inodes.iget(iNumber);     // retrieve shared inode
             } else {                    // no file, create new inode
                 if (mode.equals("r")) { // if "r", can't read from a absent file
                     return null;        // so don't do anything
                 }
-                iNumber = dir.ialloc(filename); // for others allocate iNumber
-                inode = new Inode ();           // and create new Inode for file
+                // nobody may find the name before its new inode is in the
+                // inode table, or they would read the old one from disk
+                synchronized (dir) {
+                    iNumber = dir.ialloc(filename); // for others allocate one
+                    if (iNumber >= 0)
+                        inode = inodes.ialloc(iNumber); // and create new Inode
+                }
+                if (inode == null && dir.getinum(filename) < 0)
+                    return null;                // directory is full
             }
         }
 
-        inode.count++;
-        inode.toDisk(iNumber);             // save inode to disk
+        // readers share the file, writers queue for it in turn. "rw" writers
+        // share it too and keep apart with byte-range locks instead. Only
+        // this inode's releases wake us, and a deleted file fails the open.
+        boolean locked = isShared(mode) ? inode.acquireRead()
+                : inode.acquireWrite();
+        if (!locked) {
+            inodes.iput(iNumber);
+            return null;
+        }
+
         FileTableEntry fte = new FileTableEntry(inode, iNumber, mode);
-        table.addElement(fte);             // create table entry and register it
+        HashSet<FileTableEntry> stripe = stripe(iNumber);
+        synchronized (stripe) {         // every open of the inode is here
+            inode.count++;
+            stripe.add(fte);            // create table entry and register it
+        }
+        entries.incrementAndGet();
+        inodes.markDirty(iNumber);      // inode written back lazily
         return fte;
     }
 
     /** ================================ ffree =================================
      * receive a file table entry reference
-     * save the corresponding inode to the disk
+     * release the inode's reader/writer lock and the inode itself back to the
+     * inode table
      * free this file table entry
      * return true if this file table entry found in my table
      *
      * @param fte - specified file table entry reference
      * @return    - boolean representing success or failure
      * */
-    public synchronized boolean ffree(FileTableEntry fte) {
-        if (table.remove(fte)) {    // fte found, removed successfully
-            fte.inode.status = fte.inode.UNUSED;
-            fte.inode.toDisk( fte.iNumber );
-            notifyAll();
-            return true;
+    public boolean ffree(FileTableEntry fte) {
+        HashSet<FileTableEntry> stripe = stripe(fte.iNumber);
+        synchronized (stripe) {
+            if (!stripe.remove(fte))
+                return false;  // fte not found
+            fte.inode.count--;
         }
-        return false;  // fte not found
+        entries.decrementAndGet();
+        inodes.markDirty(fte.iNumber);
+        inodes.iput(fte.iNumber);
+        if (isShared(fte.mode))    // wakes only this inode's waiters
+            fte.inode.releaseRead();
+        else
+            fte.inode.releaseWrite();
+        return true;
+    }
+
+    /** ================================ stripe ================================
+     * @param iNumber - an inode number
+     * @return        - the set holding every entry open on that inode
+     * */
+    private HashSet<FileTableEntry> stripe(short iNumber) {
+        return table[iNumber % STRIPES];
+    }
+
+    /** =============================== isShared ===============================
+     * @param mode - an open mode
+     * @return     - true if opens in mode share the inode's reader/writer lock
+     * */
+    private static boolean isShared(String mode) {
+        return mode.equals("r") || mode.equals("rw");
     }
 
     /** ================================ fempty ================================
@@ -122,8 +150,8 @@ public class FileTable {
      *
      * @return - true if empty, false if not
      * */
-    public synchronized boolean fempty() {
-        return table.isEmpty();
+    public boolean fempty() {
+        return entries.get() == 0;
     }
 
 }
@@ -14,8 +14,14 @@ public class FileTableEntry {
     public int          seekPtr;  // the seek pointer for the file
     public final String mode;     // possibilities are read ("r"), write ("w")
                                       // also "w+" and and "a"
+                                      // and shared read/write "rw"
     public int          count;    // user threads utilizing this FTE
 
+    // read-ahead state, kept up to date by FileSystem.read() and seek()
+    public int          nextRead;  // where a sequential read would continue
+    public int          raWindow;  // blocks to read ahead, 0 when off
+    public int          raEnd;     // file block read-ahead reached so far
+
     /** ============================== Constructor =============================
      * A basic constructor for initializing each private member based on the
      * parameters
@@ -32,6 +38,9 @@ public class FileTableEntry {
         mode =    m;        // the mode assignment
         if (mode.compareTo("a") == 0)
             seekPtr = inode.length; // conditional seek reassignment
+        nextRead = seekPtr; // reading from here on counts as sequential
+        raWindow = 0;
+        raEnd = 0;
     }
 
     /** =============================== toString ===============================
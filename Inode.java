@@ -5,26 +5,35 @@
  * @author Bowman Simmons
  * @date Jun 9, 2019
  *
- * The Inode class serves as a descriptor and node holder of files. It contains
- * 12 pointers, 11 of which are direct and 1 of which is indirect, to the next 
- * block. It has usage flags and pointers to keep track of a file’s state and 
- * usage. The system can accomodate as many as 16 inodes.
+ * The Inode class serves as a descriptor and node holder of files. It maps a
+ * file's blocks with extents, each a run of consecutive disk blocks given by
+ * its first block and its length, so a file written contiguously is described
+ * by a single extent however large it grows. Eight extents are kept in the
+ * inode itself. A file fragmented beyond that spills into an indirect block
+ * of more extents and then into a double-indirect block of pointers to
+ * further extent blocks. Block numbers are 32 bits wide, so a volume is not
+ * limited to 32767 blocks. It has usage flags and pointers to keep track of
+ * a file’s state and usage.
  * */
 
 /*
-//    number of blocks = 1000
-//    block size = 512 bytes each
-//    inode size = 32 bytes each
-//    inodes per block = 512/32 = 16 inodes per block
-//    number of blocks to store inodes = 4 blocks
-//    max number of inodes for 4 blocks = 16*4 = 64 inodes
-//    number of indirect block pointers = 512 byte block / 2 byte pointers =  256 pointers
+//    block size = 512 bytes to 64 KB, as formatted
+//    inode size = 64 bytes each
+//    inodes per block = block size / 64, 8 for 512 byte blocks
+//    inode layout = length (4), count (2), status (2), 8 extents (6 each),
+//                   indirect (4), double indirect (4)
+//    extent = first block (4), blocks (2)
+//    extents per extent block = block size / 6 byte extents, 85 for 512
+//    pointers per double indirect block = block size / 4, 128 for 512
 */
 
+import java.util.Arrays;
+import java.util.HashSet;
 
 public class Inode {
-    private final static int iNodeSize = 32;       // inodes are 32 bytes
-    public final static int directSize = 11;       // number of pointers for dir
+    final static int iNodeSize = 64;               // inodes are 64 bytes
+    private final static int extentSize = 6;       // first block, length
+    public final static int inlineExtents = 8;     // extents in the inode
 
     //inode status types
     public final static short UNUSED = 0;          // Default
@@ -36,8 +45,35 @@ public class Inode {
     public int   length;                           // file size (unit = bytes)
     public short count;                            // num entries pointing here
     public short status;                           // one of above status codes
-    public short direct[] = new short[directSize]; // direct reference pointers
-    public short indirect;                         //
+    public final RangeLocks ranges = new RangeLocks(); // byte-range locks
+    public int   indirect;                         // block of more extents
+    public int   doubleIndirect;                   // block of extent blocks
+
+    // extent and index block geometry, fixed for this inode's lifetime
+    private final int extentsPerBlock = Volume.blockSize() / extentSize;
+    private final int pointersPerBlock = Volume.blockSize() / 4;
+    private final int maxExtents = inlineExtents
+            + extentsPerBlock * (1 + pointersPerBlock);
+
+    // in-memory extent table, the index blocks decoded on first use
+    private int extStart[] = new int[inlineExtents];     // first disk block
+    private short extLength[] = new short[inlineExtents]; // blocks in the run
+    private int extEnd[] = new int[inlineExtents]; // file block after the run
+    private int extents = 0;                       // extents in use
+    private boolean loaded = false;                // index blocks decoded
+    private int level2[] = null;                   // double indirect pointers
+    private boolean indirectDirty = false;         // index blocks newer than
+    private boolean doubleDirty = false;           // the disk
+    private boolean level2Dirty[] = null;
+
+    private Journal journal = null;                // logs index block I/O
+
+    // reader/writer lock held by the open file table entries
+    private int readers = 0;                       // entries sharing the file
+    private boolean writing = false;               // an entry owns the file
+    private long nextTicket = 0;                   // writers queue in ticket
+    private long nowServing = 0;                   // order, first come first
+    private HashSet<Long> abandoned = null;        // tickets given up early
 
     /** ========================= Default constructor ==========================
      * Straightforward default constructor
@@ -46,22 +82,32 @@ public class Inode {
         length = 0;
         count = 0;
         status = USED;
-        for(int i = 0; i < directSize; i++)
-            direct[i] = -1;
         indirect = -1;
+        doubleIndirect = -1;
+        loaded = true;                             // nothing to decode
+    }
+
+    /** ========================= Journaled constructor =========================
+     * An empty Inode for a new file, whose index blocks go through journal
+     *
+     * @param journal - the metadata journal
+     * */
+    Inode(Journal journal) {
+        this();
+        this.journal = journal;
     }
 
     /** ====================== Parameterized Constructor =======================
-     * Takes in an inumber reads in the bytes, calculates the offset, allocates
-     * space, and instantiates the new Inode
+     * Decodes an Inode from its 64 byte slot in a block already read, whether
+     * an inode block or the superblock, which holds the inode table's own
+     * inode
      *
-     * @param iNumber - the other iNumber
+     * @param data    - the block holding the inode
+     * @param offset  - the offset of the inode's slot within data
+     * @param journal - the metadata journal its index blocks are read through
      * */
-    Inode(short iNumber) {
-        int blockNumber = 1 + iNumber / 16;
-        byte[] data = new byte[Disk.blockSize];
-        SysLib.rawread(blockNumber, data);
-        int offset = (iNumber % 16) * 32;
+    Inode(byte[] data, int offset, Journal journal) {
+        this.journal = journal;
 
         length = SysLib.bytes2int(data, offset);
         offset += 4;
@@ -70,22 +116,40 @@ public class Inode {
         status = SysLib.bytes2short(data, offset);
         offset += 2;
 
-        for(int i = 0; i < directSize; i++, offset += 2)
-            direct[i] = SysLib.bytes2short( data, offset );
-        indirect = SysLib.bytes2short(data, offset);
+        for(int i = 0; i < inlineExtents; i++, offset += extentSize) {
+            int start = SysLib.bytes2int(data, offset);
+            short blocks = SysLib.bytes2short(data, offset + 4);
+            if (blocks > 0 && extents == i)
+                addExtent(start, blocks);
+        }
+        indirect = SysLib.bytes2int(data, offset);
+        doubleIndirect = SysLib.bytes2int(data, offset + 4);
+        loaded = (indirect == -1);
     }
 
     /** =============================== toDisk ================================
      * Saves the specified Inode to the disk
      *
-     * @param iNumber - the idx of the Inode to write to the disk
+     * @param iNumber   - the idx of the Inode to write to the disk
+     * @param blkNumber - the inode block holding it
      * */
-    int toDisk(short iNumber) {
-        int blkNumber = 1 + iNumber / 16;
-        byte[] data = new byte[Disk.blockSize];
-        SysLib.rawread(blkNumber, data);
-        int offset = (iNumber % 16) * 32;
+    int toDisk(short iNumber, int blkNumber) {
+        byte[] data = new byte[Volume.blockSize()];
+        journal.read(blkNumber, data);
+        toBytes(data, offsetOf(iNumber));
+        journal.write(blkNumber, data);
 
+        return 0;
+    }
+
+    /** =============================== toBytes ================================
+     * Encodes this Inode into a 64 byte slot of an inode block, so that
+     * several inodes sharing a block can be written back with one write
+     *
+     * @param data   - the inode block being built
+     * @param offset - the offset of this inode's slot within data
+     * */
+    void toBytes(byte[] data, int offset) {
         SysLib.int2bytes(length, data, offset);
         offset += 4;
         SysLib.short2bytes(count, data, offset);
@@ -93,136 +157,487 @@ public class Inode {
         SysLib.short2bytes(status, data, offset);
         offset += 2;
 
-        for(int i = 0; i < directSize; i++, offset += 2)
-            SysLib.short2bytes(direct[i], data, offset);
-        SysLib.short2bytes(indirect, data, offset);
-        SysLib.rawwrite(blkNumber, data);
+        for(int i = 0; i < inlineExtents; i++, offset += extentSize)
+            extentToBytes(i, data, offset);
+        SysLib.int2bytes(indirect, data, offset);
+        SysLib.int2bytes(doubleIndirect, data, offset + 4);
+    }
 
-        return 0;
+    /** ============================ inodesPerBlock ============================
+     * @return - the number of inodes one block holds
+     * */
+    static int inodesPerBlock() {
+        return Volume.blockSize() / iNodeSize;
+    }
+
+    /** ============================== maxBlocks ===============================
+     * @return - the blocks a file can always address, even if every extent
+     *           is one block long
+     * */
+    static int maxBlocks() {
+        int extentsPerBlock = Volume.blockSize() / extentSize;
+        return inlineExtents
+                + extentsPerBlock * (1 + Volume.blockSize() / 4);
+    }
+
+    /** =============================== offsetOf ===============================
+     * @param iNumber - an inode number
+     * @return        - the byte offset of that inode within its block
+     * */
+    static int offsetOf(short iNumber) {
+        return (iNumber % inodesPerBlock()) * iNodeSize;
     }
 
     /** ========================= getIndexBlockNumber ==========================
      * Essentially just an accessor for the indirect private member
      *
-     * NOTE: THIS MAYBE WAS MEANT FOR THE LOGIC IN findTargetBlock()
-     *
      * @return the current value of indirect
      * */
-    short getIndexBlockNumber(){
+    int getIndexBlockNumber(){
         return indirect;
     }
 
     /** ============================ setIndexBlock =============================
-     * register a free data block on disk for use as indirect index pointers
-     * using SysLib.rawwrite() returns false if indexBlockNumber is
-     * invalid/negative or if indirect is already used, else returns true
+     * register a free data block on disk as the next index block the extent
+     * table needs after registerTargetBlock() returned -3: the indirect block
+     * first, then the double indirect block, then each extent block it points
+     * to. The new block is written by the next flushIndexBlock(). Returns
+     * false if indexBlockNumber is invalid/negative or no index block is
+     * needed, else returns true
      *
      * @param indexBlockNumber - The number of the index block to set
      */
-    public boolean setIndexBlock(short indexBlockNumber) {
-        if (indexBlockNumber >= 0 && indirect == -1) {
-            indirect = indexBlockNumber;
+    public synchronized boolean setIndexBlock(int indexBlockNumber) {
+        if (indexBlockNumber < 0 || hasSlot(extents))
+            return false;   // invalid block number, or nothing needed
 
-            // initialize indirect block's 512 pointers to -1
-            byte[] initNum = new byte[Disk.blockSize];
-            for (int i = 0; i < Disk.blockSize / 2; i++) {
-                SysLib.short2bytes((short) -1, initNum, i * 2);
-            }
-            SysLib.rawwrite(indexBlockNumber, initNum);
-            return true;
+        if (indirect == -1) {
+            indirect = indexBlockNumber;
+            indirectDirty = true;
+        } else if (doubleIndirect == -1) {
+            doubleIndirect = indexBlockNumber;
+            level2 = new int[pointersPerBlock];
+            Arrays.fill(level2, -1);
+            level2Dirty = new boolean[pointersPerBlock];
+            doubleDirty = true;
+        } else {
+            int i = level2Of(extents);
+            level2[i] = indexBlockNumber;
+            level2Dirty[i] = true;
+            doubleDirty = true;
         }
-        return false;   // invalid block number
+        return true;
     }
 
     /** =========================== findTargetBlock ============================
-     * searches direct and indirect index block pointers for data block with
-     * given offset returns block if found, else -1 on failure
+     * Finds the disk block holding the given file offset with a binary search
+     * of the extent table, returning -1 if it is not mapped. The index blocks
+     * are only decoded if the offset lies beyond the inline extents, so a
+     * contiguous file needs no I/O here at all.
      *
      * made use of primarily by write
      *
      * @param offset - the offset
      * */
-    public short findTargetBlock(int offset) {
+    public synchronized int findTargetBlock(int offset) {
         if (offset < 0)
             return -1;     // bad offset
-        int targetBlock = offset/Disk.blockSize;
-        if (targetBlock < directSize) {
-            return direct[targetBlock];
-        } else {
-            if (indirect == -1) {
-                return -1;     // no indirect block, cannot find block
-            }
-            // read indirect block
-            byte[] indirectBlock = new byte[Disk.blockSize];
-            SysLib.rawread(indirect, indirectBlock);
-            targetBlock -= directSize;
-            return SysLib.bytes2short(indirectBlock, targetBlock * 2);
+        int target = offset / Volume.blockSize();
+        if (extents == 0 || target >= extEnd[extents - 1]) {
+            if (loaded)
+                return -1;     // past the last mapped block
+            loadIndexBlocks();
+            if (extents == 0 || target >= extEnd[extents - 1])
+                return -1;
         }
+
+        int k = extentOf(target);
+        return extStart[k] + extLength[k] - (extEnd[k] - target);
+    }
+
+    /** =========================== contiguousBlocks ===========================
+     * @param offset - a mapped file offset
+     * @param max    - the most blocks the caller wants
+     * @return       - how many blocks from offset's on are consecutive on the
+     *                 disk, at most max, or 0 if offset is not mapped
+     * */
+    public synchronized int contiguousBlocks(int offset, int max) {
+        if (findTargetBlock(offset) < 0)
+            return 0;
+        int target = offset / Volume.blockSize();
+        return Math.min(max, extEnd[extentOf(target)] - target);
     }
 
     /** ========================= registerTargetBlock ==========================
-     * Register disk block with direct or indirect pointers using
-     * SysLib.rawwrite() returns 0 on success, -1, -2, or -3 on error
+     * Maps the block at offset, which must be the block just past the end of
+     * the file's mapping, to targetBlockNumber. A block that follows on from
+     * the last extent on disk just lengthens it; any other starts a new
+     * extent. Index blocks only change in memory, and the caller writes them
+     * out once with flushIndexBlock(). Returns 0 on success, -1 if the block
+     * is mapped already or the table is full, -2 if it would leave a gap, or
+     * -3 if a new index block must first be given with setIndexBlock()
      *
      * @param offset - the offset
      * @param targetBlockNumber - the target to register
      * @return - success or failure
      * */
-    public int registerTargetBlock(int offset, short targetBlockNumber) {
-        int target_idx = offset / Disk.blockSize;
+    public synchronized int registerTargetBlock(int offset,
+                                                int targetBlockNumber) {
+        int target_idx = offset / Volume.blockSize();
+        loadIndexBlocks();
+        int mapped = (extents == 0) ? 0 : extEnd[extents - 1];
 
-        if (directSize > target_idx) {
-            if (direct[target_idx] >= 0)
-                return -1;
-            else if (target_idx > 0 && (direct[target_idx - 1] == -1))
-                return -2;
-            direct[target_idx] = targetBlockNumber;
+        if (target_idx < mapped)
+            return -1;
+        else if (target_idx > mapped)
+            return -2;
+
+        int last = extents - 1;
+        if (last >= 0 && extStart[last] + extLength[last] == targetBlockNumber
+                && extLength[last] < Short.MAX_VALUE) {
+            extLength[last]++;
+            extEnd[last]++;
+            markDirty(last);
             return 0;
-        } else if (indirect < 0) {
+        } else if (extents >= maxExtents) {
+            return -1;
+        } else if (!hasSlot(extents)) {
             return -3;
         }
 
-        byte[] writeto = new byte [Disk.blockSize];
-        SysLib.rawread(indirect, writeto);
+        addExtent(targetBlockNumber, (short) 1);
+        markDirty(extents - 1);
+        return 0;
+    }
 
-        if (SysLib.bytes2short(writeto, (2 * (target_idx - directSize))) > 0)
-            return -1;
+    /** =========================== flushIndexBlock ============================
+     * Writes back whichever index blocks registerTargetBlock() or
+     * setIndexBlock() changed, so a whole write call logs one image of each
+     * no matter how many blocks it allocated
+     * */
+    public synchronized void flushIndexBlock() {
+        if (indirectDirty) {
+            journal.write(indirect, extentsToBytes(inlineExtents));
+            indirectDirty = false;
+        }
+        if (doubleDirty) {
+            byte[] data = new byte[Volume.blockSize()];
+            for (int i = 0; i < pointersPerBlock; i++)
+                SysLib.int2bytes(level2[i], data, i * 4);
+            journal.write(doubleIndirect, data);
+            doubleDirty = false;
+        }
+        for (int i = 0; level2Dirty != null && i < pointersPerBlock; i++) {
+            if (level2Dirty[i]) {
+                journal.write(level2[i], extentsToBytes(inlineExtents
+                        + extentsPerBlock * (1 + i)));
+                level2Dirty[i] = false;
+            }
+        }
+    }
 
-        SysLib.short2bytes(targetBlockNumber, writeto,
-                (2 * (target_idx - directSize)));
-        SysLib.rawwrite(indirect, writeto);
-        return 0;
+    /** ============================= acquireRead ==============================
+     * Blocks until no writer holds or is queued for the file, then shares it
+     * with any other readers. Waiting writers go first, so a steady stream of
+     * readers cannot starve them.
+     *
+     * @return - false if the file was deleted while waiting
+     * */
+    public synchronized boolean acquireRead() {
+        while ((writing || nextTicket != nowServing)
+                && status != TO_BE_DELETED) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        if (status == TO_BE_DELETED)
+            return false;
+        readers++;
+        status = READ;
+        return true;
+    }
+
+    /** ============================= acquireWrite =============================
+     * Takes a ticket and blocks until every earlier writer has been served
+     * and no reader or writer holds the file, then owns it. A writer giving
+     * up on a deleted file still gives up its ticket, so those behind it are
+     * not left waiting for its turn.
+     *
+     * @return - false if the file was deleted while waiting
+     * */
+    public synchronized boolean acquireWrite() {
+        long ticket = nextTicket++;
+        while ((writing || readers > 0 || ticket != nowServing)
+                && status != TO_BE_DELETED) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        if (status == TO_BE_DELETED) {
+            if (ticket == nowServing) {
+                serveNext();
+            } else {
+                if (abandoned == null)
+                    abandoned = new HashSet<Long>();
+                abandoned.add(ticket);      // skipped when its turn comes
+            }
+            notifyAll();
+            return false;
+        }
+        writing = true;
+        status = WRITE;
+        return true;
+    }
+
+    /** ============================== releaseRead =============================
+     * Stops sharing the file, waking the entries waiting on this inode alone
+     * */
+    public synchronized void releaseRead() {
+        readers--;
+        released();
+    }
+
+    /** ============================= releaseWrite =============================
+     * Gives up ownership of the file and lets the next writer's ticket in
+     * */
+    public synchronized void releaseWrite() {
+        writing = false;
+        serveNext();
+        released();
+    }
+
+    /** ============================ markDeleted ===============================
+     * Marks the file deleted, so every open still waiting on it gives up
+     * */
+    public synchronized void markDeleted() {
+        status = TO_BE_DELETED;
+        notifyAll();
+    }
+
+    /** ============================== serveNext ===============================
+     * Moves on to the next writer's ticket, past any given up already
+     * */
+    private void serveNext() {
+        nowServing++;
+        while (abandoned != null && abandoned.remove(nowServing))
+            nowServing++;
+    }
+
+    /** =============================== released ===============================
+     * Resets the status once the lock is free and wakes this inode's waiters
+     * */
+    private void released() {
+        if (readers == 0 && !writing && status != TO_BE_DELETED)
+            status = UNUSED;
+        notifyAll();
+    }
+
+    /** ============================= mappedBlocks =============================
+     * @return - the number of file blocks mapped, all of them from block 0 on
+     * */
+    public synchronized int mappedBlocks() {
+        loadIndexBlocks();
+        return (extents == 0) ? 0 : extEnd[extents - 1];
+    }
+
+    /** ============================= extentCount ==============================
+     * @return - the number of extents mapping the file
+     * */
+    public synchronized int extentCount() {
+        loadIndexBlocks();
+        return extents;
+    }
+
+    /** ============================= extentStart ==============================
+     * @param k - an extent number below extentCount()
+     * @return  - the first disk block of that extent
+     * */
+    public int extentStart(int k) {
+        return extStart[k];
+    }
+
+    /** ============================= extentLength =============================
+     * @param k - an extent number below extentCount()
+     * @return  - the number of blocks in that extent
+     * */
+    public short extentLength(int k) {
+        return extLength[k];
     }
 
     /** ========================= unregisterIndexBlock =========================
-     * unregister/clear disk block being used for indirect index pointers
-     * reads index block from disk using SysLib.rawread()
-     * resets indirect = -1, returns byte array of indirect data
-     * returns null if indirect == -1 (already no index block)
+     * unregister/clear the whole block mapping, resetting indirect and
+     * doubleIndirect to -1, and returns the index blocks it held so that the
+     * caller can free them together with the extents
      *
-     * @return - the bytes that were read from the disk
+     * @return - the released index blocks, empty if there were none
      */
-    public byte[] unregisterIndexBlock() {
-        if (indirect == -1)
-            return null;
-        byte[] indirectData = new byte[Disk.blockSize];
-        SysLib.rawread(indirect, indirectData);
+    public synchronized int[] unregisterIndexBlock() {
+        loadIndexBlocks();
+        int[] held = new int[pointersPerBlock + 2];
+        int n = 0;
+        if (indirect != -1)
+            held[n++] = indirect;
+        if (doubleIndirect != -1) {
+            held[n++] = doubleIndirect;
+            for (int i = 0; i < pointersPerBlock; i++) {
+                if (level2[i] != -1)
+                    held[n++] = level2[i];
+            }
+        }
+
         indirect = -1;
-        return indirectData;
+        doubleIndirect = -1;
+        extents = 0;
+        level2 = null;
+        level2Dirty = null;
+        indirectDirty = false;
+        doubleDirty = false;
+        return Arrays.copyOf(held, n);
     }
 
-    @Override
-    public String toString() {
-        return "length: " + length + ", count: " + count + ", status" + status +
-                ", direct: " + direct + ", indirect: " + indirect;
+    /** =============================== extentOf ===============================
+     * Binary search of the extent table
+     *
+     * @param target - a mapped file block
+     * @return       - the extent holding it
+     * */
+    private int extentOf(int target) {
+        int lo = 0;
+        int hi = extents - 1;
+        while (lo < hi) {   // first extent ending after target
+            int mid = (lo + hi) / 2;
+            if (extEnd[mid] > target)
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /** ============================== addExtent ===============================
+     * Appends an extent to the in-memory table, growing it as needed
+     *
+     * @param start  - the first disk block of the run
+     * @param blocks - the number of blocks in the run
+     * */
+    private void addExtent(int start, short blocks) {
+        if (extents == extStart.length) {
+            int capacity = Math.min(extents * 2, maxExtents);
+            extStart = Arrays.copyOf(extStart, capacity);
+            extLength = Arrays.copyOf(extLength, capacity);
+            extEnd = Arrays.copyOf(extEnd, capacity);
+        }
+        extStart[extents] = start;
+        extLength[extents] = blocks;
+        extEnd[extents] = ((extents == 0) ? 0 : extEnd[extents - 1]) + blocks;
+        extents++;
     }
 
-    /** ============================ getDirectSize =============================
-     * Essentially just an accessor for the directSize private member
+    /** =============================== hasSlot ================================
+     * @param k - an extent number
+     * @return  - true if the index block that would hold extent k exists
+     * */
+    private boolean hasSlot(int k) {
+        if (k < inlineExtents)
+            return true;
+        if (k < inlineExtents + extentsPerBlock)
+            return indirect != -1;
+        return doubleIndirect != -1 && level2[level2Of(k)] != -1;
+    }
+
+    /** =============================== level2Of ===============================
+     * @param k - an extent number past the indirect block
+     * @return  - which double indirect pointer leads to extent k
+     * */
+    private int level2Of(int k) {
+        return (k - inlineExtents - extentsPerBlock) / extentsPerBlock;
+    }
+
+    /** ============================== markDirty ===============================
+     * Remembers which index block extent k lives in. Inline extents need
+     * nothing, since the caller marks the inode itself dirty.
+     *
+     * @param k - the changed extent
+     * */
+    private void markDirty(int k) {
+        if (k < inlineExtents)
+            return;
+        if (k < inlineExtents + extentsPerBlock)
+            indirectDirty = true;
+        else
+            level2Dirty[level2Of(k)] = true;
+    }
+
+    /** ============================ extentToBytes =============================
+     * Encodes extent k, or an empty extent if k is not in use
      *
-     * @return - directSize
+     * @param k      - the extent number
+     * @param data   - the block being built
+     * @param offset - where the 6 byte extent goes in data
      * */
-    public int getDirectSize() {
-        return directSize;
+    private void extentToBytes(int k, byte[] data, int offset) {
+        SysLib.int2bytes((k < extents) ? extStart[k] : -1, data, offset);
+        SysLib.short2bytes((k < extents) ? extLength[k] : 0, data, offset + 4);
+    }
+
+    /** ============================ extentsToBytes ============================
+     * @param first - the extent number the block starts with
+     * @return      - one extent block holding the extents from first on
+     * */
+    private byte[] extentsToBytes(int first) {
+        byte[] data = new byte[Volume.blockSize()];
+        for (int j = 0; j < extentsPerBlock; j++)
+            extentToBytes(first + j, data, j * extentSize);
+        return data;
+    }
+
+    /** ============================ loadIndexBlocks ===========================
+     * Decodes the indirect block and everything under the double indirect
+     * block into the extent table the first time they are needed
+     * */
+    private void loadIndexBlocks() {
+        if (loaded)
+            return;
+        loaded = true;
+        byte[] data = new byte[Volume.blockSize()];
+        if (!loadExtentBlock(indirect, data) || doubleIndirect == -1)
+            return;
+
+        journal.read(doubleIndirect, data);
+        level2 = new int[pointersPerBlock];
+        level2Dirty = new boolean[pointersPerBlock];
+        for (int i = 0; i < pointersPerBlock; i++)
+            level2[i] = SysLib.bytes2int(data, i * 4);
+        for (int i = 0; i < pointersPerBlock && level2[i] != -1; i++) {
+            if (!loadExtentBlock(level2[i], data))
+                break;
+        }
+    }
+
+    /** =========================== loadExtentBlock ============================
+     * Appends the extents stored in one extent block to the table
+     *
+     * @param blockId - the extent block
+     * @param data    - scratch space for the block
+     * @return        - true if the block was full, so more may follow
+     * */
+    private boolean loadExtentBlock(int blockId, byte[] data) {
+        journal.read(blockId, data);
+        for (int j = 0; j < extentsPerBlock; j++) {
+            short blocks = SysLib.bytes2short(data, j * extentSize + 4);
+            if (blocks <= 0)
+                return false;
+            addExtent(SysLib.bytes2int(data, j * extentSize), blocks);
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "length: " + length + ", count: " + count + ", status" + status +
+                ", extents: " + extents + ", indirect: " + indirect +
+                ", double indirect: " + doubleIndirect;
     }
 }
@@ -0,0 +1,169 @@
+/**
+ * @file InodeTable.java
+ * @author Midori Williams
+ * @author Kevin Hsu
+ * @author Bowman Simmons
+ *
+ * The Inode Table is the in-core copy of every inode currently in use. All
+ * opens of the same file share one Inode object through iget(), and the entry
+ * is reference counted so it is dropped again once the last user calls
+ * iput(). Changed inodes are only marked dirty; they are written back lazily
+ * by sync(), which groups them by inode block so that each block is read and
+ * written at most once no matter how many of its inodes changed. Inode
+ * blocks are found through the superblock, since the on-disk inode table
+ * grows, and are read and written through the metadata journal.
+ * */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+public class InodeTable {
+    private final static int DIRTY_LIMIT = 64;  // dirty inodes kept before
+                                                // crowded() asks for a sync()
+
+    private HashMap<Short, Entry> table;        // iNumber -> in-core inode
+    private TreeSet<Short> dirty;               // iNumbers awaiting write back
+                                                // sorted so blocks group up
+    private Journal journal;                    // metadata journal
+    private Superblock superBlock;              // locates the inode blocks
+
+    /** =============================== Entry ==================================
+     * An in-core inode and the number of users currently holding it
+     * */
+    private class Entry {
+        Inode inode;
+        int   refs;
+
+        Entry(Inode inode) {
+            this.inode = inode;
+            this.refs = 0;
+        }
+    }
+
+    /** ============================= Constructor ==============================
+     * Creates an empty inode table
+     *
+     * @param journal    - the metadata journal inode blocks go through
+     * @param superBlock - the superblock mapping the inode table
+     * */
+    public InodeTable(Journal journal, Superblock superBlock) {
+        table = new HashMap<Short, Entry>();
+        dirty = new TreeSet<Short>();
+        this.journal = journal;
+        this.superBlock = superBlock;
+    }
+
+    /** ================================= iget =================================
+     * Returns the shared in-core Inode for iNumber, reading it from the disk
+     * only if nobody currently holds it, and takes a reference on it. The read
+     * happens outside the table's lock, holding only the new entry, so other
+     * inodes can be got and put meanwhile.
+     *
+     * @param iNumber - the inode to get
+     * @return        - the shared Inode
+     * */
+    public Inode iget(short iNumber) {
+        Entry entry;
+        synchronized (this) {
+            entry = table.get(iNumber);
+            if (entry == null) {
+                entry = new Entry(null);
+                table.put(iNumber, entry);
+            }
+            entry.refs++;
+        }
+        synchronized (entry) {      // later users wait for the first read
+            if (entry.inode == null) {
+                byte[] data = new byte[Volume.blockSize()];
+                journal.read(superBlock.inodeBlock(iNumber), data);
+                entry.inode = new Inode(data, Inode.offsetOf(iNumber), journal);
+            }
+            return entry.inode;
+        }
+    }
+
+    /** ================================ ialloc ================================
+     * Replaces whatever is stored for iNumber with a fresh, empty Inode for a
+     * newly created file and takes a reference on it. The new inode is dirty.
+     *
+     * @param iNumber - the inode number just handed out by the directory
+     * @return        - the new shared Inode
+     * */
+    public synchronized Inode ialloc(short iNumber) {
+        Entry entry = table.get(iNumber);
+        if (entry == null) {
+            entry = new Entry(new Inode(journal));
+            table.put(iNumber, entry);
+        } else {
+            synchronized (entry) {
+                entry.inode = new Inode(journal);
+            }
+        }
+        entry.refs++;
+        dirty.add(iNumber);
+        return entry.inode;
+    }
+
+    /** ================================= iput =================================
+     * Drops a reference taken by iget() or ialloc(). Once no references are
+     * left a clean inode leaves the table, while a dirty one stays until the
+     * next sync() has written it back. iput() never syncs itself, since it
+     * may be called outside any journal transaction.
+     *
+     * @param iNumber - the inode to release
+     * */
+    public synchronized void iput(short iNumber) {
+        Entry entry = table.get(iNumber);
+        if (entry == null || --entry.refs > 0)
+            return;
+        if (!dirty.contains(iNumber))
+            table.remove(iNumber);
+    }
+
+    /** =============================== crowded ================================
+     * @return - true once enough inodes are dirty that a caller outside a
+     *           transaction should start one to sync() them
+     * */
+    public synchronized boolean crowded() {
+        return dirty.size() >= DIRTY_LIMIT;
+    }
+
+    /** ============================== markDirty ===============================
+     * Records that the in-core copy of iNumber has changed and must be written
+     * back on the next sync()
+     *
+     * @param iNumber - the changed inode
+     * */
+    public synchronized void markDirty(short iNumber) {
+        if (table.containsKey(iNumber))
+            dirty.add(iNumber);
+    }
+
+    /** ================================= sync =================================
+     * Writes every dirty inode back, one read and one write per inode block,
+     * and drops the ones nobody references any more
+     * */
+    public synchronized void sync() {
+        byte[] data = new byte[Volume.blockSize()];
+        int blkNumber = -1;
+
+        for (Iterator<Short> it = dirty.iterator(); it.hasNext(); ) {
+            short iNumber = it.next();
+            if (superBlock.inodeBlock(iNumber) != blkNumber) {
+                if (blkNumber >= 0)
+                    journal.write(blkNumber, data);
+                blkNumber = superBlock.inodeBlock(iNumber);
+                journal.read(blkNumber, data);
+            }
+            Entry entry = table.get(iNumber);
+            entry.inode.flushIndexBlock();
+            entry.inode.toBytes(data, Inode.offsetOf(iNumber));
+            if (entry.refs <= 0)
+                table.remove(iNumber);
+            it.remove();
+        }
+        if (blkNumber >= 0)
+            journal.write(blkNumber, data);
+    }
+}
@@ -0,0 +1,346 @@
+/**
+ * @file Journal.java
+ * @author Midori Williams
+ * @author Kevin Hsu
+ * @author Bowman Simmons
+ *
+ * The Journal is a write-ahead log for file system metadata: the superblock's
+ * free-space bitmap, inode blocks and indirect blocks. A syscall brackets its
+ * metadata updates with begin() and end(), and every block it writes in
+ * between is held in memory as part of the running transaction instead of
+ * going to its home location.
+ *
+ * Transactions are group committed. Syscalls that overlap in time all join
+ * the same running transaction, and when the last of them calls end() the
+ * whole group is appended to the log as one sequential run of blocks: a
+ * descriptor block listing the home block numbers, the block images, and a
+ * commit block. Only after that are the images handed to the buffer cache,
+ * which writes them home in its own time. A background thread periodically
+ * checkpoints: it forces the cache out and then empties the log.
+ *
+ * On mount, mount() replays every transaction in the log that has a matching
+ * commit block, so a crash leaves either all or none of a syscall's metadata
+ * updates on the disk.
+ *
+ * Journal region layout (block numbers relative to the region's start):
+ *   0      - header: magic, sequence number of the first transaction to replay
+ *   1...   - transactions: descriptor, images..., commit
+ * */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class Journal extends Thread {
+    private final static int HEADER_MAGIC     = 0x4a484452; // "JHDR"
+    private final static int DESCRIPTOR_MAGIC = 0x4a445343; // "JDSC"
+    private final static int COMMIT_MAGIC     = 0x4a434d54; // "JCMT"
+    private final static int MAGIC_OFFSET = 0;
+    private final static int SEQ_OFFSET = 4;
+    private final static int COUNT_OFFSET = 8;
+    private final static int ENTRIES_OFFSET = 12;
+    private final static int CHECKPOINT_INTERVAL = 5000; // ms between
+                                                          // checkpoints
+
+    private int journalStart;          // header block of the journal region
+    private int journalBlocks;         // size of the region, header included
+    private int descriptorEntries;     // home blocks one descriptor lists
+    private int logPos;                // next free log block, region relative
+    private Transaction running;       // transaction syscalls currently join
+
+    /** ============================ Transaction ===============================
+     * The latest image of every block a group of syscalls has written, keyed
+     * by home block number in the order they were first written
+     * */
+    private class Transaction {
+        int seq;                       // sequence number in the log
+        int handles;                   // syscalls between begin() and end()
+        boolean closing;               // a syscall is waiting for commit, so
+                                       // no new syscalls may join
+        boolean done;                  // durably in the log
+        LinkedHashMap<Integer, byte[]> blocks;
+
+        Transaction(int seq) {
+            this.seq = seq;
+            this.handles = 0;
+            this.closing = false;
+            this.done = false;
+            this.blocks = new LinkedHashMap<Integer, byte[]>();
+        }
+    }
+
+    /** ============================= Constructor ==============================
+     * Creates a journal with no region yet. The superblock assigns one with
+     * format() or mount(). Starts the background checkpoint thread.
+     * */
+    public Journal() {
+        running = new Transaction(1);
+        setDaemon(true);
+        start();
+    }
+
+    /** ================================ format ================================
+     * Takes over a freshly laid out journal region, discarding anything that
+     * was pending. Sequence numbers continue past any old header found in the
+     * region, so stale transactions left in it can never be replayed.
+     *
+     * @param start  - the header block of the region
+     * @param blocks - the number of blocks in the region
+     * */
+    public synchronized void format(int start, int blocks) {
+        journalStart = start;
+        journalBlocks = blocks;
+        descriptorEntries = (Volume.blockSize() - ENTRIES_OFFSET) / 4;
+
+        byte[] header = new byte[Volume.blockSize()];
+        Volume.rawread(journalStart, header);
+        int seq = 1;
+        if (SysLib.bytes2int(header, MAGIC_OFFSET) == HEADER_MAGIC)
+            seq = SysLib.bytes2int(header, SEQ_OFFSET) + journalBlocks;
+
+        running = new Transaction(seq);
+        writeHeader(seq);
+        notifyAll();
+    }
+
+    /** ================================ mount =================================
+     * Takes over an existing journal region and replays every committed
+     * transaction still in it into the buffer cache, then forces them home and
+     * empties the log. Must run before any metadata is read.
+     *
+     * @param start  - the header block of the region
+     * @param blocks - the number of blocks in the region
+     * */
+    public synchronized void mount(int start, int blocks) {
+        journalStart = start;
+        journalBlocks = blocks;
+        descriptorEntries = (Volume.blockSize() - ENTRIES_OFFSET) / 4;
+
+        byte[] header = new byte[Volume.blockSize()];
+        Volume.rawread(journalStart, header);
+        if (SysLib.bytes2int(header, MAGIC_OFFSET) != HEADER_MAGIC) {
+            format(start, blocks);
+            return;
+        }
+
+        int seq = SysLib.bytes2int(header, SEQ_OFFSET);
+        int pos = 1;
+        boolean replayed = false;
+        byte[] descriptor = new byte[Volume.blockSize()];
+        byte[] commit = new byte[Volume.blockSize()];
+        while (pos + 2 <= journalBlocks) {
+            Volume.rawread(journalStart + pos, descriptor);
+            int count = SysLib.bytes2int(descriptor, COUNT_OFFSET);
+            if (SysLib.bytes2int(descriptor, MAGIC_OFFSET) != DESCRIPTOR_MAGIC
+                    || SysLib.bytes2int(descriptor, SEQ_OFFSET) != seq
+                    || count < 0 || count > descriptorEntries
+                    || pos + count + 2 > journalBlocks)
+                break;
+
+            Volume.rawread(journalStart + pos + count + 1, commit);
+            if (SysLib.bytes2int(commit, MAGIC_OFFSET) != COMMIT_MAGIC
+                    || SysLib.bytes2int(commit, SEQ_OFFSET) != seq)
+                break;         // never committed, stop replaying here
+
+            for (int i = 0; i < count; i++) {
+                byte[] image = new byte[Volume.blockSize()];
+                Volume.rawread(journalStart + pos + 1 + i, image);
+                Volume.write(SysLib.bytes2int(descriptor,
+                        ENTRIES_OFFSET + i * 4), image);
+            }
+            replayed = true;
+            pos += count + 2;
+            seq++;
+        }
+
+        if (replayed)
+            SysLib.csync();
+        running = new Transaction(seq);
+        writeHeader(seq);
+        notifyAll();
+    }
+
+    /** ================================ begin =================================
+     * Joins the running transaction. Waits first if that transaction is
+     * already closing, so that a steady stream of syscalls cannot keep it
+     * open forever.
+     * */
+    public synchronized void begin() {
+        while (running.closing) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        running.handles++;
+    }
+
+    /** ================================= end ==================================
+     * Leaves the running transaction. The last syscall to leave commits the
+     * whole group; the others wait until it has, so every syscall returns
+     * only once its metadata is safely in the log.
+     * */
+    public synchronized void end() {
+        Transaction txn = running;
+        txn.handles--;
+
+        if (txn.handles > 0) {
+            txn.closing = true;        // let the rest of the group finish
+            while (!txn.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                }
+            }
+            return;
+        }
+
+        if (txn.blocks.isEmpty()) {    // nothing to log, reuse the sequence
+            running = new Transaction(txn.seq);
+        } else {
+            running = new Transaction(txn.seq + 1);
+            commit(txn);
+        }
+        txn.done = true;
+        notifyAll();
+    }
+
+    /** ================================ write =================================
+     * Records the new contents of a metadata block in the running transaction.
+     * A later write of the same block replaces the earlier image.
+     *
+     * @param blockId - the home block number
+     * @param buffer  - the new block contents
+     * */
+    public synchronized void write(int blockId, byte[] buffer) {
+        byte[] image = new byte[Volume.blockSize()];
+        System.arraycopy(buffer, 0, image, 0, Volume.blockSize());
+        running.blocks.put(blockId, image);
+    }
+
+    /** ================================= read =================================
+     * Reads a metadata block, seeing any image the running transaction holds
+     * for it before falling back to the buffer cache
+     *
+     * @param blockId - the home block number
+     * @param buffer  - receives the block contents
+     * */
+    public synchronized void read(int blockId, byte[] buffer) {
+        byte[] image = running.blocks.get(blockId);
+        if (image != null)
+            System.arraycopy(image, 0, buffer, 0, Volume.blockSize());
+        else
+            Volume.read(blockId, buffer);
+    }
+
+    /** ============================== checkpoint ==============================
+     * Forces every committed image to its home location and empties the log.
+     * The cache is forced out without holding the journal, so syscalls keep
+     * beginning, logging and committing meanwhile. The log is only emptied
+     * if none of them committed in the meantime, else the whole thing is
+     * tried again, since their images may not be home yet.
+     * */
+    public void checkpoint() {
+        while (true) {
+            int pos;
+            int seq;
+            synchronized (this) {
+                if (logPos <= 1)
+                    return;
+                pos = logPos;
+                seq = running.seq;     // every commit moves this on
+            }
+            SysLib.csync();
+            synchronized (this) {
+                if (logPos == pos && running.seq == seq) {
+                    writeHeader(seq);
+                    return;
+                }
+            }
+        }
+    }
+
+    /** ================================= run ==================================
+     * The background checkpoint thread
+     * */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(CHECKPOINT_INTERVAL);
+            } catch (InterruptedException e) {
+            }
+            checkpoint();
+        }
+    }
+
+    /** ================================ commit ================================
+     * Appends a transaction to the log as one sequential run of blocks and
+     * then hands its images to the buffer cache. A transaction too large for
+     * one log record is written straight home and forced out instead, which
+     * is durable but not atomic.
+     *
+     * @param txn - the transaction to commit
+     * */
+    private void commit(Transaction txn) {
+        int count = txn.blocks.size();
+        if (count > descriptorEntries || count + 3 > journalBlocks) {
+            for (Map.Entry<Integer, byte[]> e : txn.blocks.entrySet())
+                Volume.write(e.getKey(), e.getValue());
+            checkpoint(txn.seq + 1);
+            return;
+        }
+        if (logPos + count + 2 > journalBlocks)
+            checkpoint(txn.seq);   // log full, make room first
+
+        ArrayList<byte[]> images = new ArrayList<byte[]>(count);
+        byte[] descriptor = new byte[Volume.blockSize()];
+        SysLib.int2bytes(DESCRIPTOR_MAGIC, descriptor, MAGIC_OFFSET);
+        SysLib.int2bytes(txn.seq, descriptor, SEQ_OFFSET);
+        SysLib.int2bytes(count, descriptor, COUNT_OFFSET);
+        int i = 0;
+        for (Map.Entry<Integer, byte[]> e : txn.blocks.entrySet()) {
+            SysLib.int2bytes(e.getKey(), descriptor, ENTRIES_OFFSET + i++ * 4);
+            images.add(e.getValue());
+        }
+
+        byte[] commit = new byte[Volume.blockSize()];
+        SysLib.int2bytes(COMMIT_MAGIC, commit, MAGIC_OFFSET);
+        SysLib.int2bytes(txn.seq, commit, SEQ_OFFSET);
+        SysLib.int2bytes(count, commit, COUNT_OFFSET);
+
+        // descriptor, images and commit land in consecutive log blocks
+        Volume.rawwrite(journalStart + logPos, descriptor);
+        for (i = 0; i < count; i++)
+            Volume.rawwrite(journalStart + logPos + 1 + i, images.get(i));
+        Volume.rawwrite(journalStart + logPos + count + 1, commit);
+        logPos += count + 2;
+
+        // now safe in the log, the cache may write them home whenever
+        for (Map.Entry<Integer, byte[]> e : txn.blocks.entrySet())
+            Volume.write(e.getKey(), e.getValue());
+    }
+
+    /** ============================== checkpoint ==============================
+     * Writes every dirty cached block home, then records in the header that
+     * replay starts at nextSeq and reuses the log from its beginning
+     *
+     * @param nextSeq - the sequence number the next committed transaction uses
+     * */
+    private void checkpoint(int nextSeq) {
+        SysLib.csync();
+        writeHeader(nextSeq);
+    }
+
+    /** ============================= writeHeader ==============================
+     * Rewrites the journal header and empties the log
+     *
+     * @param seq - the sequence number replay should start from
+     * */
+    private void writeHeader(int seq) {
+        byte[] header = new byte[Volume.blockSize()];
+        SysLib.int2bytes(HEADER_MAGIC, header, MAGIC_OFFSET);
+        SysLib.int2bytes(seq, header, SEQ_OFFSET);
+        Volume.rawwrite(journalStart, header);
+        logPos = 1;
+    }
+}
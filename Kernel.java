@@ -39,8 +39,49 @@ public class Kernel
     public final static int SIZE    = 16; // SysLib.size( int fd )
     public final static int SEEK    = 17; // SysLib.seek( int fd, int offest,
                                           //              int whence )
-    public final static int FORMAT  = 18; // SysLib.format( int files )
+    public final static int FORMAT  = 18; // SysLib.format( int files[,
+                                          //   int blocks, int blockSize] )
     public final static int DELETE  = 19; // SysLib.delete( String fileName )
+    public final static int FREEBLK = 20; // SysLib.freeBlocks( )
+    public final static int MKDIR   = 21; // SysLib.mkdir( String path )
+    public final static int RMDIR   = 22; // SysLib.rmdir( String path )
+    public final static int CREADRUN= 23; // SysLib.cread(int blk, int blocks,
+                                          //              byte b[], int off)
+    public final static int CWRITERUN=24; // SysLib.cwrite(int blk, int blocks,
+                                          //               byte b[], int off)
+    public final static int CPREFETCH=25; // SysLib.cprefetch(int blk,
+                                          //                  int blocks)
+    public final static int AREAD   = 26; // SysLib.aread(int fd, byte b[])
+    public final static int AWRITE  = 27; // SysLib.awrite(int fd, byte b[])
+    public final static int AWAIT   = 28; // SysLib.await(int handle)
+    public final static int APOLL   = 29; // SysLib.apoll(int handle)
+    public final static int READV   = 30; // SysLib.readv(int fd, byte b[][])
+    public final static int WRITEV  = 31; // SysLib.writev(int fd, byte b[][])
+    public final static int PREAD   = 32; // SysLib.pread(int fd, byte b[],
+                                          //              int offset)
+    public final static int PWRITE  = 33; // SysLib.pwrite(int fd, byte b[],
+                                          //               int offset)
+    public final static int LOCK    = 34; // SysLib.lock(int fd, int offset,
+                                          //   int length, boolean exclusive)
+    public final static int UNLOCK  = 35; // SysLib.unlock(int fd, int offset,
+                                          //               int length)
+    public final static int RAWREADRUN=36; // SysLib.rawread(int blk,
+                                           //   int blocks, byte b[], int off)
+    public final static int RAWWRITERUN=37;// SysLib.rawwrite(int blk,
+                                           //   int blocks, byte b[], int off)
+
+    // Schedulers BOOT can start
+    public final static int ROUND_ROBIN = 0; // SysLib.boot( )
+    public final static int FEEDBACK    = 1; // multilevel feedback queues
+    public final static int VIRTUAL     = 2; // unsliced virtual threads
+
+    // Disk backends BOOT can start
+    public final static int HEAP_DISK   = 0; // SysLib.boot( )
+    public final static int MAPPED_DISK = 1; // DISK mapped from the host
+
+    // Disk interrupt sources
+    public final static int DISK_DONE = 0; // SysLib.disk( )
+    public final static int AIO_DONE  = 1; // SysLib.aiodone(int handle)
 
     // Predefined file descriptors
     public final static int STDIN  = 0;
@@ -50,19 +91,27 @@ public class Kernel
     // Return values
     public final static int OK = 0;
     public final static int ERROR = -1;
+    public final static int PENDING = -2;  // async request still in flight
 
     // System thread references
     private static Scheduler scheduler;
     private static Disk disk;
+    private static DiskQueue diskQueue;  // orders and merges disk requests
     private static Cache cache;
     private static FileSystem fs;
+    private static AsyncIO aio;
 
     // Synchronized Queues
     private static SyncQueue waitQueue;  // for threads to wait for their child
-    private static SyncQueue ioQueue;    // I/O queue
 
-    private final static int COND_DISK_REQ = 1; // wait condition
-    private final static int COND_DISK_FIN = 2; // wait condition
+    // Host file the Disk saves its image to, which MAPPED_DISK maps
+    private final static String DISK_IMAGE = "DISK";
+
+    // Disk blocks when BOOT is not given a disk size
+    private final static int DISK_BLOCKS = 1000;
+
+    // Buffer cache size used when BOOT is not given one
+    private final static int DEFAULT_CACHE_BLOCKS = 64;
 
     // Standard input
     private static BufferedReader input
@@ -75,21 +124,66 @@ public class Kernel
             case INTERRUPT_SOFTWARE: // System calls
                 switch(cmd) {
                     case BOOT:
+                        // args = the scheduler, or {scheduler, disk order}
+                        // or {scheduler, disk order, disk backend}
+                        // or {scheduler, disk order, disk backend, blocks}
+                        int policy = ROUND_ROBIN;
+                        int order = DiskQueue.CLOOK;
+                        int backend = HEAP_DISK;
+                        int diskBlocks = DISK_BLOCKS;
+                        if (args instanceof int[]) {
+                            int[] bootArgs = (int[])args;
+                            if (bootArgs.length > 0)
+                                policy = bootArgs[0];
+                            if (bootArgs.length > 1)
+                                order = bootArgs[1];
+                            if (bootArgs.length > 2)
+                                backend = bootArgs[2];
+                            if (bootArgs.length > 3 && bootArgs[3] > 0)
+                                diskBlocks = bootArgs[3];
+                        } else if (args != null) {
+                            policy = (Integer)args;
+                        }
+                        if (policy < ROUND_ROBIN || policy > VIRTUAL
+                                || order < DiskQueue.FIFO
+                                || order > DiskQueue.DEADLINE
+                                || (backend != HEAP_DISK
+                                    && backend != MAPPED_DISK))
+                            return ERROR;     // nothing started yet
+
                         // instantiate and start a scheduler
-                        scheduler = new Scheduler();
+                        scheduler = new Scheduler(policy == FEEDBACK,
+                                policy == VIRTUAL);
                         scheduler.start();
 
-                        // instantiate and start a disk
-                        disk = new Disk(1000);
-                        disk.start();
+                        // instantiate and start a disk, or map its image
+                        // a mapped image grows to diskBlocks, never shrinks
+                        diskQueue = null;
+                        if (backend == MAPPED_DISK) {
+                            try {
+                                MappedDisk mapped = new MappedDisk(DISK_IMAGE,
+                                        diskBlocks);
+                                diskBlocks = mapped.blocks();
+                                diskQueue = new DiskQueue(mapped);
+                            } catch (IOException e) {
+                                System.out.println(e);  // use the heap Disk
+                            }
+                        }
+                        if (diskQueue == null) {
+                            disk = new Disk(diskBlocks);
+                            disk.start();
+                            diskQueue = new DiskQueue(disk, diskBlocks, order);
+                        }
 
-                        // instantiate a cache memory
-                        cache = new Cache(disk.blockSize, 10);
+                        // instantiate a cache memory, param = cache blocks
+                        cache = new Cache(Disk.blockSize,
+                                (param > 0) ? param : DEFAULT_CACHE_BLOCKS,
+                                diskQueue);
 
                         // instantiate synchronized queues
-                        ioQueue = new SyncQueue();
                         waitQueue = new SyncQueue(scheduler.getMaxThreads());
-                        fs = new FileSystem(1000);
+                        fs = new FileSystem(diskBlocks);
+                        aio = new AsyncIO(fs);
                         return OK;
                     case EXEC:
                         return sysExec((String[])args);
@@ -105,6 +199,8 @@ public class Kernel
                             int myPid = myTcb.getPid(); // get my parent ID
                             int myTid = myTcb.getTid(); // get my ID
                             if (myPid != -1) {
+                                // drop my async results nobody collected
+                                aio.exit(myTid);
                                 // wake up a thread waiting on my parent ID
                                 waitQueue.dequeueAndWakeup(myPid, myTid);
                                 // I'm terminated!
@@ -117,23 +213,48 @@ public class Kernel
                         scheduler.sleepThread(param); // param = milliseconds
                         return OK;
                     case RAWREAD: // read a block of data from disk
-                        while (disk.read(param, (byte[])args) == false)
-                            ioQueue.enqueueAndSleep(COND_DISK_REQ);
-                        while (disk.testAndResetReady() == false)
-                            ioQueue.enqueueAndSleep(COND_DISK_FIN);
-                        return OK;
+                        return diskQueue.read(param, (byte[])args)
+                                ? OK : ERROR;
                     case RAWWRITE: // write a block of data to disk
-                        while (disk.write( param, (byte[])args) == false)
-                            ioQueue.enqueueAndSleep(COND_DISK_REQ);
-                        while (disk.testAndResetReady() == false)
-                            ioQueue.enqueueAndSleep(COND_DISK_FIN);
-                        return OK;
+                        return diskQueue.write(param, (byte[])args)
+                                ? OK : ERROR;
+                    case RAWREADRUN: // read consecutive blocks from disk
+                        Object[] rawReadRun = (Object[])args;
+                        return diskQueue.read(param, (Integer)rawReadRun[1],
+                                (byte[])rawReadRun[0], (Integer)rawReadRun[2])
+                                ? OK : ERROR;
+                    case RAWWRITERUN: // write consecutive blocks to disk
+                        Object[] rawWriteRun = (Object[])args;
+                        return diskQueue.write(param, (Integer)rawWriteRun[1],
+                                (byte[])rawWriteRun[0], (Integer)rawWriteRun[2])
+                                ? OK : ERROR;
                     case SYNC:     // synchronize disk data to a real file
                         fs.sync();
-                        while (disk.sync() == false)
-                            ioQueue.enqueueAndSleep(COND_DISK_REQ);
-                        while (disk.testAndResetReady() == false)
-                            ioQueue.enqueueAndSleep(COND_DISK_FIN);
+                        cache.sync();
+                        diskQueue.sync();
+                        return OK;
+                    case CREAD:   // read a block of data through the cache
+                        return cache.read(param, (byte[])args) ? OK : ERROR;
+                    case CREADRUN: // read consecutive blocks via the cache
+                        Object[] readRun = (Object[])args;
+                        return cache.read(param, (Integer)readRun[1],
+                                (byte[])readRun[0], (Integer)readRun[2])
+                                ? OK : ERROR;
+                    case CWRITE:  // write a block of data through the cache
+                        return cache.write(param, (byte[])args) ? OK : ERROR;
+                    case CWRITERUN: // write consecutive blocks via the cache
+                        Object[] writeRun = (Object[])args;
+                        return cache.write(param, (Integer)writeRun[1],
+                                (byte[])writeRun[0], (Integer)writeRun[2])
+                                ? OK : ERROR;
+                    case CPREFETCH: // load blocks into the cache ahead of use
+                        return cache.prefetch(param, (Integer)args) ? OK
+                                : ERROR;
+                    case CSYNC:   // write back all dirty cached blocks
+                        cache.sync();
+                        return OK;
+                    case CFLUSH:  // write back and invalidate the cache
+                        cache.flush();
                         return OK;
                     case READ:
                         switch (param ) {
@@ -198,6 +319,8 @@ public class Kernel
                     case CLOSE:
                         if ((myTcb = scheduler.getMyTcb()) != null) {
                             FileTableEntry ftEnt = myTcb.getFtEnt(param);
+                            if (ftEnt != null)
+                                aio.drain(ftEnt); // let async I/O finish
                             if (ftEnt == null || fs.close(ftEnt) == false)
                                 return ERROR;
                             if (myTcb.returnFd( param ) != ftEnt)
@@ -221,18 +344,89 @@ public class Kernel
                         }
                         return ERROR;
                     case FORMAT:
+                        // args = null, or {blocks, block size}
+                        if (args instanceof int[]) {
+                            int[] layout = (int[])args;
+                            return (fs.format(param, layout[0], layout[1])
+                                    == true) ? OK : ERROR;
+                        }
                         return (fs.format(param) == true) ? OK : ERROR;
                     case DELETE:
                         return ( fs.delete((String)args) == true) ? OK : ERROR;
+                    case FREEBLK:
+                        return fs.freeBlocks();
+                    case MKDIR:
+                        return ( fs.mkdir((String)args) == true) ? OK : ERROR;
+                    case RMDIR:
+                        return ( fs.rmdir((String)args) == true) ? OK : ERROR;
+                    case AREAD:
+                    case AWRITE:
+                        if ((myTcb = scheduler.getMyTcb()) != null) {
+                            FileTableEntry ftEnt = myTcb.getFtEnt(param);
+                            if (ftEnt != null)
+                                return aio.submit(myTcb.getTid(), ftEnt,
+                                        (byte[])args, cmd == AWRITE);
+                        }
+                        return ERROR;
+                    case READV:
+                        if ((myTcb = scheduler.getMyTcb()) != null) {
+                            FileTableEntry ftEnt = myTcb.getFtEnt(param);
+                            if (ftEnt != null)
+                                return fs.readv(ftEnt, (byte[][])args);
+                        }
+                        return ERROR;
+                    case WRITEV:
+                        if ((myTcb = scheduler.getMyTcb()) != null) {
+                            FileTableEntry ftEnt = myTcb.getFtEnt(param);
+                            if (ftEnt != null)
+                                return fs.writev(ftEnt, (byte[][])args);
+                        }
+                        return ERROR;
+                    case PREAD:
+                    case PWRITE:
+                        if ((myTcb = scheduler.getMyTcb()) != null) {
+                            Object[] pArgs = (Object[])args;
+                            FileTableEntry ftEnt = myTcb.getFtEnt(param);
+                            if (ftEnt != null && cmd == PREAD)
+                                return fs.pread(ftEnt, (byte[])pArgs[0],
+                                        (Integer)pArgs[1]);
+                            if (ftEnt != null)
+                                return fs.pwrite(ftEnt, (byte[])pArgs[0],
+                                        (Integer)pArgs[1]);
+                        }
+                        return ERROR;
+                    case LOCK:
+                    case UNLOCK:
+                        if ((myTcb = scheduler.getMyTcb()) != null) {
+                            int[] range = (int[])args;
+                            FileTableEntry ftEnt = myTcb.getFtEnt(param);
+                            if (ftEnt != null && cmd == LOCK)
+                                return fs.lock(ftEnt, range[0], range[1],
+                                        range[2] != 0);
+                            if (ftEnt != null)
+                                return fs.unlock(ftEnt, range[0], range[1]);
+                        }
+                        return ERROR;
+                    case AWAIT:   // only the submitting thread may collect
+                        if ((myTcb = scheduler.getMyTcb()) != null)
+                            return aio.await(myTcb.getTid(), param);
+                        return ERROR;
+                    case APOLL:
+                        if ((myTcb = scheduler.getMyTcb()) != null)
+                            return aio.poll(myTcb.getTid(), param);
+                        return ERROR;
                 }
                 return ERROR;
 
             case INTERRUPT_DISK: // Disk interrupts
-                // wake up the thread waiting for a service completion
-                ioQueue.dequeueAndWakeup(COND_DISK_FIN);
+                if (cmd == AIO_DONE) {
+                    // post an async request's completion, waking its waiter
+                    aio.complete(param);
+                    return OK;
+                }
 
-                // wake up the thread waiting for a request acceptance
-                //    ioQueue.dequeueAndWakeup(COND_DISK_REQ);
+                // wake up the disk queue, which alone waits for the disk
+                diskQueue.diskDone();
 
                 return OK;
             case INTERRUPT_IO:   // other I/O interrupts (not implemented)
@@ -268,7 +462,7 @@ public class Kernel
                 thrObj = thrConst.newInstance(constructorArgs);
             }
             // instantiate a new thread of this object
-            Thread t = new Thread((Runnable)thrObj);
+            Thread t = scheduler.newThread((Runnable)thrObj);
 
             // add this thread into scheduler's circular list.
             TCB newTcb = scheduler.addThread(t);
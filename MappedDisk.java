@@ -0,0 +1,117 @@
+/**
+ * @file MappedDisk.java
+ * @author Midori Williams
+ * @author Kevin Hsu
+ * @author Bowman Simmons
+ *
+ * The Mapped Disk keeps the disk image in a memory-mapped host file rather
+ * than in a heap array loaded at BOOT and saved whole on every sync. The
+ * file has the Disk's layout, one block after another, so either backend
+ * can boot the image the other left behind.
+ *
+ * Reads and writes copy straight to and from the mapping and return at once,
+ * since there is no head to wait for. Writes only mark their block dirty,
+ * and sync() forces just the dirty runs of blocks out to the file, so its
+ * cost follows what changed rather than the size of the disk. Pages nobody
+ * touches are never brought into memory.
+ *
+ * An image already larger than asked for keeps its size, so a disk of many
+ * gigabytes is made by growing the host file. It is mapped a gigabyte at a
+ * time, since one mapping cannot pass 2 GB.
+ * */
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+public class MappedDisk {
+    private final static int BLOCK_SIZE = Disk.blockSize;
+    private final static int SEGMENT_BLOCKS = 1 << 21; // 1 GB per mapping
+
+    private int totalBlocks;
+    private MappedByteBuffer[] image;   // the host file, a segment at a time
+    private BitSet dirty;               // blocks written since the last sync
+
+    /** ============================= Constructor ==============================
+     * Maps the host file, growing it with zeroed blocks to the disk's size
+     *
+     * @param path        - the host file holding the disk image
+     * @param totalBlocks - the least number of blocks on the disk
+     * @throws IOException if the file cannot be opened or mapped
+     * */
+    public MappedDisk(String path, int totalBlocks) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            this.totalBlocks = (int) Math.min(Integer.MAX_VALUE,
+                    Math.max(totalBlocks, file.length() / BLOCK_SIZE));
+            long size = (long) this.totalBlocks * BLOCK_SIZE;
+            if (file.length() < size)
+                file.setLength(size);
+            image = new MappedByteBuffer[(int) (((long) this.totalBlocks
+                    + SEGMENT_BLOCKS - 1) / SEGMENT_BLOCKS)];
+            for (int i = 0; i < image.length; i++) {
+                long first = (long) i * SEGMENT_BLOCKS;
+                long blocks = Math.min(SEGMENT_BLOCKS,
+                        this.totalBlocks - first);
+                image[i] = file.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, first * BLOCK_SIZE,
+                        blocks * BLOCK_SIZE); // valid once the file is closed
+            }
+        }
+        dirty = new BitSet(this.totalBlocks);
+    }
+
+    /** ================================ blocks ================================
+     * @return - the number of blocks on the disk
+     * */
+    public int blocks() {
+        return totalBlocks;
+    }
+
+    /** ================================= read =================================
+     * @param blockId - the block to read
+     * @param buffer  - receives the block
+     * @return        - false if blockId is not on the disk
+     * */
+    public boolean read(int blockId, byte[] buffer) {
+        if (blockId < 0 || blockId >= totalBlocks)
+            return false;
+        image[blockId / SEGMENT_BLOCKS].get(
+                (blockId % SEGMENT_BLOCKS) * BLOCK_SIZE, buffer, 0, BLOCK_SIZE);
+        return true;
+    }
+
+    /** ================================ write =================================
+     * @param blockId - the block to write
+     * @param buffer  - the block contents
+     * @return        - false if blockId is not on the disk
+     * */
+    public boolean write(int blockId, byte[] buffer) {
+        if (blockId < 0 || blockId >= totalBlocks)
+            return false;
+        image[blockId / SEGMENT_BLOCKS].put(
+                (blockId % SEGMENT_BLOCKS) * BLOCK_SIZE, buffer, 0, BLOCK_SIZE);
+        synchronized (this) {
+            dirty.set(blockId);
+        }
+        return true;
+    }
+
+    /** ================================= sync =================================
+     * Forces every run of dirty blocks out to the host file, a run crossing
+     * from one segment into the next being forced in two parts
+     * */
+    public synchronized void sync() {
+        for (int start = dirty.nextSetBit(0); start >= 0;
+                start = dirty.nextSetBit(start)) {
+            int end = (int) Math.min(dirty.nextClearBit(start),
+                    (long) (start / SEGMENT_BLOCKS + 1) * SEGMENT_BLOCKS);
+            image[start / SEGMENT_BLOCKS].force(
+                    (start % SEGMENT_BLOCKS) * BLOCK_SIZE,
+                    (end - start) * BLOCK_SIZE);
+            dirty.clear(start, end);
+            start = end;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * @file RangeLocks.java
+ * @author Midori Williams
+ * @author Kevin Hsu
+ * @author Bowman Simmons
+ *
+ * RangeLocks holds the byte-range locks on one file. A lock covers a range of
+ * file offsets and belongs to the file table entry that took it, so threads
+ * sharing an entry share its locks. Shared locks may overlap each other, but
+ * an exclusive lock overlaps no lock of any other entry.
+ *
+ * The locks are mandatory: FileSystem reads wait for overlapping exclusive
+ * locks of other entries to go, and writes for any overlapping lock of other
+ * entries. Each read or write then holds its own range, shared or exclusive,
+ * until it is done, so no other entry can lock the range or write into it
+ * while the I/O is under way. Together with the shared read/write open mode
+ * "rw" this lets several threads update disjoint records of one file at the
+ * same time.
+ * */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+public class RangeLocks {
+    private ArrayList<Range> ranges;   // every lock currently held
+
+    /** =============================== Range ==================================
+     * One lock: its owner and the offsets [start, end) it covers
+     * */
+    private class Range {
+        FileTableEntry owner;
+        int start;
+        int end;
+        boolean exclusive;
+        boolean held;                  // only for one read or write
+
+        Range(FileTableEntry owner, int start, int end, boolean exclusive,
+              boolean held) {
+            this.owner = owner;
+            this.start = start;
+            this.end = end;
+            this.exclusive = exclusive;
+            this.held = held;
+        }
+    }
+
+    /** ============================= Constructor ==============================
+     * A file with no locks
+     * */
+    public RangeLocks() {
+        ranges = new ArrayList<Range>();
+    }
+
+    /** ================================= lock =================================
+     * Blocks until no other entry's lock conflicts, then locks the range for
+     * owner. Whatever owner already held inside the range is replaced, so a
+     * lock can be upgraded or downgraded in place.
+     *
+     * @param owner     - the entry taking the lock
+     * @param start     - the first offset covered
+     * @param length    - the number of bytes covered, 0 for the rest of the
+     *                    file however far it grows
+     * @param exclusive - true for an exclusive lock, false for a shared one
+     * @return          - false if the range is invalid
+     * */
+    public synchronized boolean lock(FileTableEntry owner, int start,
+                                     int length, boolean exclusive) {
+        if (owner == null || start < 0 || length < 0)
+            return false;
+        int end = endOf(start, length);
+        while (conflicts(owner, start, end, exclusive)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        release(owner, start, end);
+        ranges.add(new Range(owner, start, end, exclusive, false));
+        notifyAll();    // a downgrade or split may let others in
+        return true;
+    }
+
+    /** ================================ unlock ================================
+     * Unlocks whatever owner holds inside the range, splitting a lock that
+     * only partly overlaps it
+     *
+     * @param owner  - the entry giving up the range
+     * @param start  - the first offset
+     * @param length - the number of bytes, 0 for the rest of the file
+     * @return       - false if the range is invalid
+     * */
+    public synchronized boolean unlock(FileTableEntry owner, int start,
+                                       int length) {
+        if (owner == null || start < 0 || length < 0)
+            return false;
+        release(owner, start, endOf(start, length));
+        notifyAll();
+        return true;
+    }
+
+    /** ============================== unlockAll ===============================
+     * Drops every lock owner holds, when it is closed
+     *
+     * @param owner - the entry being closed
+     * */
+    public synchronized void unlockAll(FileTableEntry owner) {
+        for (Iterator<Range> it = ranges.iterator(); it.hasNext(); ) {
+            Range r = it.next();
+            if (r.owner == owner && !r.held)
+                it.remove();
+        }
+        notifyAll();
+    }
+
+    /** ================================= hold =================================
+     * Blocks a read or write by owner of the given range until no other
+     * entry's lock or I/O stands in its way, then holds the range, shared for
+     * a read and exclusive for a write, until drop() is called with the same
+     * arguments. A hold leaves owner's own locks alone.
+     *
+     * @param owner  - the entry doing the I/O
+     * @param start  - the first offset touched
+     * @param length - the number of bytes touched
+     * @param write  - true for a write, which any lock blocks, false for a
+     *                 read, which only exclusive locks block
+     * */
+    public synchronized void hold(FileTableEntry owner, int start,
+                                  int length, boolean write) {
+        if (start < 0 || length <= 0)
+            return;
+        int end = endOf(start, length);
+        while (conflicts(owner, start, end, write)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        ranges.add(new Range(owner, start, end, write, true));
+    }
+
+    /** ================================= drop =================================
+     * Ends a hold taken by hold(), waking entries waiting on the range
+     *
+     * @param owner  - the entry that did the I/O
+     * @param start  - the first offset touched
+     * @param length - the number of bytes touched
+     * @param write  - true if it was a write
+     * */
+    public synchronized void drop(FileTableEntry owner, int start,
+                                  int length, boolean write) {
+        if (start < 0 || length <= 0)
+            return;
+        int end = endOf(start, length);
+        for (Iterator<Range> it = ranges.iterator(); it.hasNext(); ) {
+            Range r = it.next();
+            if (r.held && r.owner == owner && r.start == start
+                    && r.end == end && r.exclusive == write) {
+                it.remove();
+                break;
+            }
+        }
+        notifyAll();
+    }
+
+    /** ============================== conflicts ===============================
+     * @return - true if a lock of another entry overlaps [start, end) and
+     *           either it or the access wanted is exclusive
+     * */
+    private boolean conflicts(FileTableEntry owner, int start, int end,
+                              boolean exclusive) {
+        for (Range r : ranges) {
+            if (r.owner != owner && r.start < end && start < r.end
+                    && (exclusive || r.exclusive))
+                return true;
+        }
+        return false;
+    }
+
+    /** =============================== release ================================
+     * Removes owner's locks on [start, end), keeping the parts of them that
+     * lie outside it
+     * */
+    private void release(FileTableEntry owner, int start, int end) {
+        ArrayList<Range> kept = new ArrayList<Range>();
+        for (Iterator<Range> it = ranges.iterator(); it.hasNext(); ) {
+            Range r = it.next();
+            if (r.owner != owner || r.held || r.end <= start
+                    || end <= r.start)
+                continue;
+            it.remove();
+            if (r.start < start)
+                kept.add(new Range(owner, r.start, start, r.exclusive,
+                        false));
+            if (end < r.end)
+                kept.add(new Range(owner, end, r.end, r.exclusive, false));
+        }
+        ranges.addAll(kept);
+    }
+
+    /** ================================ endOf =================================
+     * @return - the end of a range, where a length of 0 means no end at all
+     *           and a range reaching past the largest offset ends there
+     * */
+    private static int endOf(int start, int length) {
+        long end = (long) start + length;
+        return (length == 0 || end > Integer.MAX_VALUE) ? Integer.MAX_VALUE
+                : (int) end;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * @file ReadAhead.java
+ * @author Midori Williams
+ * @author Kevin Hsu
+ * @author Bowman Simmons
+ *
+ * The Read Ahead thread fetches file blocks into the buffer cache before they
+ * are asked for. FileSystem.read() notices when an open file is being read
+ * front to back and queues the runs of blocks just past the reader here; this
+ * thread loads them with Volume.prefetch() while the reader is still busy
+ * with the data it already has, so a sequential stream finds its next blocks
+ * cached instead of stalling at every block boundary.
+ *
+ * Requests are only hints. The queue is bounded, and a request that does not
+ * fit is simply dropped, since the reader will fetch the blocks itself.
+ * */
+
+import java.util.LinkedList;
+
+public class ReadAhead extends Thread {
+    private final static int QUEUE_LIMIT = 64;  // pending runs kept at most
+
+    private LinkedList<int[]> queue;            // runs as {first block, count}
+
+    /** ============================= Constructor ==============================
+     * Creates an empty queue and starts the background thread
+     * */
+    public ReadAhead() {
+        queue = new LinkedList<int[]>();
+        setDaemon(true);
+        start();
+    }
+
+    /** =============================== request ================================
+     * Queues a run of consecutive disk blocks to be brought into the cache
+     *
+     * @param blockId - the first disk block of the run
+     * @param blocks  - the number of blocks in the run
+     * */
+    public synchronized void request(int blockId, int blocks) {
+        if (blockId < 0 || blocks < 1 || queue.size() >= QUEUE_LIMIT)
+            return;
+        queue.addLast(new int[] { blockId, blocks });
+        notify();
+    }
+
+    /** ================================= run ==================================
+     * The background thread, prefetching queued runs in order
+     * */
+    public void run() {
+        while (true) {
+            int[] run;
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                run = queue.removeFirst();
+            }
+            Volume.prefetch(run[0], run[1]);
+        }
+    }
+}
@@ -1,10 +1,33 @@
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Scheduler extends Thread {
-    private Vector queue;
+    private ArrayDeque<TCB> queue;  // round robin order, guarded by itself
+    private Map<Thread, TCB> tcbs;  // every queued TCB by its thread
     private int timeSlice;
     private static final int DEFAULT_TIME_SLICE = 1000;
 
+    // Multilevel feedback mode. Threads start in the top queue, the one run
+    // first. A thread that blocks or sleeps before its quantum runs out moves
+    // up a queue and one that uses it all moves down, where quanta are longer.
+    // Every queue is emptied into the top one now and then so nothing
+    // starves. In this mode queue is the top of levels.
+    private ArrayDeque<TCB>[] levels; // null in round robin mode
+    private static final int FEEDBACK_LEVELS = 3;
+    private static final int TICK = 10;          // ms between running checks
+    private static final int BOOST_SLICES = 5;   // boost every 5 full slices
+
+    // Virtual thread mode. ThreadOS threads are JVM virtual threads where the
+    // JVM has them, or else platform threads with small stacks. Either way
+    // they run free rather than being time sliced, since a virtual thread
+    // cannot be suspended, and the scheduler only starts and reaps them.
+    private boolean unsliced;
+    private Object builder;         // Thread.ofVirtual(), null if absent
+    private Method unstarted;       // Thread.Builder.unstarted(Runnable)
+    private static final int VIRTUAL_MAX_THREADS = 65536;
+    private static final long PLATFORM_STACK = 256 * 1024;
+
     // New data added to p161
     private boolean[] tids; // Indicate which ids have been used
     private static final int DEFAULT_MAX_THREADS = 10000;
@@ -44,18 +67,10 @@ public class Scheduler extends Thread {
     }
 
     // A new feature added to p161
-    // Retrieve the current thread's TCB from the queue
+    // Retrieve the current thread's TCB. Every file syscall starts here, so
+    // it is a hash lookup by thread that never takes the queue's lock.
     public TCB getMyTcb() {
-        Thread myThread = Thread.currentThread(); // Get my thread object
-        synchronized (queue) {
-            for (int i = 0; i < queue.size(); i++) {
-                TCB tcb = (TCB) queue.elementAt(i);
-                Thread thread = tcb.getThread();
-                if (thread == myThread) // if this is my TCB, return it
-                    return tcb;
-            }
-        }
-        return null;
+        return tcbs.get(Thread.currentThread());
     }
 
     // A new feature added to p161
@@ -66,13 +81,15 @@ public class Scheduler extends Thread {
 
     public Scheduler() {
         timeSlice = DEFAULT_TIME_SLICE;
-        queue = new Vector();
+        queue = new ArrayDeque<TCB>();
+        tcbs = new ConcurrentHashMap<Thread, TCB>();
         initTid(DEFAULT_MAX_THREADS);
     }
 
     public Scheduler(int quantum) {
         timeSlice = quantum;
-        queue = new Vector();
+        queue = new ArrayDeque<TCB>();
+        tcbs = new ConcurrentHashMap<Thread, TCB>();
         initTid(DEFAULT_MAX_THREADS);
     }
 
@@ -80,10 +97,47 @@ public class Scheduler extends Thread {
     // A constructor to receive the max number of threads to be spawned
     public Scheduler(int quantum, int maxThreads) {
         timeSlice = quantum;
-        queue = new Vector();
+        queue = new ArrayDeque<TCB>();
+        tcbs = new ConcurrentHashMap<Thread, TCB>();
         initTid(maxThreads);
     }
 
+    // A constructor choosing between round robin, multilevel feedback and
+    // virtual threads
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Scheduler(boolean feedback, boolean virtual) {
+        this();
+        if (virtual) {
+            unsliced = true;
+            initTid(VIRTUAL_MAX_THREADS);
+            try {
+                builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                unstarted = Class.forName("java.lang.Thread$Builder")
+                        .getMethod("unstarted", Runnable.class);
+            } catch (Exception e) {
+                builder = null;     // before Java 21, use platform threads
+            }
+        } else if (feedback) {
+            levels = new ArrayDeque[FEEDBACK_LEVELS];
+            levels[0] = queue;
+            for (int i = 1; i < FEEDBACK_LEVELS; i++)
+                levels[i] = new ArrayDeque<TCB>();
+        }
+    }
+
+    // Create the thread a ThreadOS program runs in, for addThread()
+    public Thread newThread(Runnable program) {
+        if (builder != null) {
+            try {
+                return (Thread) unstarted.invoke(builder, program);
+            } catch (Exception e) {
+            }
+        }
+        if (unsliced)
+            return new Thread(null, program, "ThreadOS", PLATFORM_STACK);
+        return new Thread(program);
+    }
+
     private void schedulerSleep() {
         try {
             Thread.sleep(timeSlice);
@@ -112,7 +166,12 @@ public class Scheduler extends Thread {
             }
         }
         // end file systm addition **********************
-        queue.add(tcb);
+        tcbs.put(t, tcb);
+        synchronized (queue) {
+            queue.addLast(tcb);
+        }
+        if (unsliced)
+            t.start();      // nothing will ever resume it
         return tcb;
     }
 
@@ -145,21 +204,39 @@ public class Scheduler extends Thread {
         }
     }
 
+    // Take a TCB at the head of the queue out of the system for good
+    private void removeThread(TCB tcb) {
+        synchronized (queue) {
+            queue.pollFirst();
+        }
+        tcbs.remove(tcb.getThread());
+        returnTid(tcb.getTid());
+    }
+
     // A modified run of p161
     public void run() {
+        if (levels != null) {
+            runFeedback();
+            return;
+        }
+        if (unsliced) {
+            runUnsliced();
+            return;
+        }
         Thread current = null;
 
         while (true) {
             try {
                 // get the next TCB and its thrad
-                if (queue.size() == 0)
+                TCB currentTCB;
+                synchronized (queue) {
+                    currentTCB = queue.peekFirst();
+                }
+                if (currentTCB == null)
                     continue;
 
-                TCB currentTCB = (TCB) queue.firstElement();
-
                 if (currentTCB.getTerminated() == true) {
-                    queue.remove(currentTCB);
-                    returnTid(currentTCB.getTid());
+                    removeThread(currentTCB);
                     continue;
                 }
 
@@ -174,8 +251,7 @@ public class Scheduler extends Thread {
                         try {
                             current.start();
                         } catch (IllegalThreadStateException e) {
-                            queue.remove(currentTCB);
-                            returnTid(currentTCB.getTid());
+                            removeThread(currentTCB);
                         }
                     }
                 }
@@ -186,11 +262,159 @@ public class Scheduler extends Thread {
                     if (current != null && current.isAlive()) {
                         current.suspend();
                     }
-                    queue.remove(currentTCB); // rotate this TCB to the end
-                    queue.add(currentTCB);
+                    // rotate this TCB to the end, unless it left the queue
+                    if (queue.peekFirst() == currentTCB)
+                        queue.addLast(queue.pollFirst());
+                }
+            } catch (NullPointerException e3) {
+            }
+        }
+    }
+
+    // The quantum of a feedback level, a quarter slice at the top doubling on
+    // every level down to a full slice at the bottom
+    private int quantum(int level) {
+        return Math.max(timeSlice >> (levels.length - 1 - level), TICK);
+    }
+
+    // Whether a thread could use the CPU now. A thread in wait() or sleep()
+    // keeps reporting so while suspended, until it is woken.
+    private boolean ready(Thread thread) {
+        Thread.State state = thread.getState();
+        return state != Thread.State.WAITING
+                && state != Thread.State.TIMED_WAITING;
+    }
+
+    // Take the first TCB worth running from the highest queue that has one,
+    // or a terminated one to reap. Threads still waiting keep their place.
+    private TCB pickNext(int[] level) {
+        synchronized (queue) {
+            for (int i = 0; i < levels.length; i++) {
+                for (Iterator<TCB> it = levels[i].iterator(); it.hasNext(); ) {
+                    TCB tcb = it.next();
+                    if (tcb.getTerminated() || ready(tcb.getThread())) {
+                        it.remove();
+                        level[0] = i;
+                        return tcb;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    // Whether a thread in a queue above level could run now
+    private boolean readyAbove(int level) {
+        synchronized (queue) {
+            for (int i = 0; i < level; i++) {
+                for (TCB tcb : levels[i]) {
+                    if (!tcb.getTerminated() && ready(tcb.getThread()))
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Move every thread to the top queue
+    private void boost() {
+        synchronized (queue) {
+            for (int i = 1; i < levels.length; i++) {
+                queue.addAll(levels[i]);
+                levels[i].clear();
+            }
+        }
+    }
+
+    // The multilevel feedback loop. The chosen thread runs until its quantum
+    // is up, it blocks or sleeps, or a thread in a higher queue is ready,
+    // checking every TICK ms, and then goes to the back of its new queue.
+    private void runFeedback() {
+        long nextBoost = System.currentTimeMillis()
+                + (long) BOOST_SLICES * timeSlice;
+        int[] level = new int[1];
+
+        while (true) {
+            try {
+                if (System.currentTimeMillis() >= nextBoost) {
+                    boost();
+                    nextBoost = System.currentTimeMillis()
+                            + (long) BOOST_SLICES * timeSlice;
+                }
+
+                TCB currentTCB = pickNext(level);
+                if (currentTCB == null) {
+                    sleepThread(TICK);  // everyone is blocked
+                    continue;
+                }
+                if (currentTCB.getTerminated() == true) {
+                    tcbs.remove(currentTCB.getThread());
+                    returnTid(currentTCB.getTid());
+                    continue;
+                }
+
+                Thread current = currentTCB.getThread();
+                if (current.isAlive()) {
+                    current.resume();
+                } else {
+                    try {
+                        current.start();
+                    } catch (IllegalThreadStateException e) {
+                        tcbs.remove(current);
+                        returnTid(currentTCB.getTid());
+                        continue;
+                    }
+                }
+
+                int used = 0;
+                boolean yielded = false;
+                boolean preempted = false;
+                while (used < quantum(level[0])) {
+                    sleepThread(TICK);
+                    used += TICK;
+                    if (!current.isAlive() || currentTCB.getTerminated()
+                            || !ready(current)) {
+                        yielded = true;
+                        break;
+                    }
+                    if (readyAbove(level[0])) {
+                        preempted = true;
+                        break;
+                    }
+                }
+
+                int next = level[0];
+                if (yielded)
+                    next = Math.max(next - 1, 0);
+                else if (!preempted)
+                    next = Math.min(next + 1, levels.length - 1);
+                synchronized (queue) {
+                    if (current.isAlive())
+                        current.suspend();
+                    levels[next].addLast(currentTCB);
                 }
             } catch (NullPointerException e3) {
             }
         }
     }
+
+    // The virtual thread loop, which once a slice reaps the threads that
+    // have exited. They are started by addThread() and never suspended.
+    private void runUnsliced() {
+        while (true) {
+            synchronized (queue) {
+                for (Iterator<TCB> it = queue.iterator(); it.hasNext(); ) {
+                    TCB tcb = it.next();
+                    Thread thread = tcb.getThread();
+                    if (tcb.getTerminated()
+                            || thread.getState() == Thread.State.TERMINATED) {
+                        it.remove();
+                        tcbs.remove(thread);
+                        returnTid(tcb.getTid());
+                    }
+                }
+            }
+            schedulerSleep();
+        }
+    }
 }
@@ -1,132 +1,354 @@
-import java.util.Date;
+import java.util.BitSet;
 
 public class Superblock {
     private final int DEFAULT_INODES = 64;
     private final int TOTAL_BLOCKS_OFFSET = 0;
     private final int TOTAL_INODES_OFFSET = 4;
-    private final int FREE_LIST_OFFSET = 8;
-    public int totalBlocks; //the number of disk blocks
-    public int totalInodes; // the number of inodes(16 per block)
-    public int freeListHead;    // the block number of the free list's head
+    private final int BITMAP_START_OFFSET = 8;
+    private final int JOURNAL_BLOCKS_OFFSET = 12;
+    private final int BLOCK_SIZE_OFFSET = 16;
+    private final int INODE_TABLE_OFFSET = 32;  // the inode table's own inode
+    private final int JOURNAL_BYTES = 16384;  // the journal's default size
+    private final int MIN_JOURNAL_BLOCKS = 4;
+    public final static int MAX_INODES = Short.MAX_VALUE; // inumbers are short
+    private int diskSize;       // the number of Disk blocks on the disk
+    private int bitsPerBlock;   // blocks one bitmap block covers
+    public int totalBlocks; //the number of file system blocks
+    public int totalInodes; // the number of inodes the table holds so far
+    public int bitmapStart;     // the first block of the free-space bitmap
+    public int bitmapBlocks;    // the number of bitmap blocks
+    public int journalStart;    // the first block of the metadata journal
+    public int journalBlocks;   // the number of journal blocks
+    public int dataStart;       // the first block available for file data
+
+    private Journal journal;    // logs every bitmap update
+
+    private Inode inodeTable;   // maps the blocks of the inode table, a file
+    private boolean superDirty; // the inode table grew since the last sync
+
+    private BitSet used;        // in-memory bitmap, set bit = block in use
+    private boolean[] bitmapDirty; // bitmap blocks changed since last sync
+    private int freeBlocks;     // number of clear bits in used
+    private int nextSearch;     // where the next allocation starts looking
 
     // Constructor
-    public Superblock(int diskSize) {
-        //read superblock from disk
-        byte[] superBlock = new byte[Disk.blockSize];
-        SysLib.rawread(0, superBlock);
+    // diskSize is in Disk blocks, which a file system block may hold several of
+    public Superblock(int diskSize, Journal journal) {
+        this.journal = journal;
+        this.diskSize = diskSize;
+
+        //read superblock from disk, including the block size the rest of the
+        //disk is read with
+        byte[] superBlock = readSuperblock();
         totalBlocks = SysLib.bytes2int(superBlock, TOTAL_BLOCKS_OFFSET);
-        totalInodes = SysLib.bytes2int(superBlock, TOTAL_INODES_OFFSET);
-        freeListHead = SysLib.bytes2int(superBlock, FREE_LIST_OFFSET);
-        
+        bitmapStart = SysLib.bytes2int(superBlock, BITMAP_START_OFFSET);
+        journalBlocks = SysLib.bytes2int(superBlock, JOURNAL_BLOCKS_OFFSET);
+        int blockSize = SysLib.bytes2int(superBlock, BLOCK_SIZE_OFFSET);
+
         //at startup, has it been formatted yet?
-        if (totalBlocks == diskSize && totalInodes > 0 && freeListHead >= 2) {
-            //disk contents are valid
-            return;
-        } else {
-            //need to format disk
-            totalBlocks = diskSize; // this will be 1000 for a new file system
-            sbFormat(DEFAULT_INODES);
+        if (Volume.isBlockSize(blockSize) && totalBlocks > 0
+                && (long) totalBlocks * (blockSize / Disk.blockSize)
+                        <= diskSize
+                && bitmapStart >= 1 && journalBlocks >= 3) {
+            //disk contents look valid, replay the journal before reading any
+            //other metadata, including the inode table, which may have grown
+            //since format. Then bring the bitmap into memory
+            Volume.setBlockSize(blockSize);
+            layout();
+            journal.mount(journalStart, journalBlocks);
+            if (loadInodeTable()) {
+                loadBitmap();
+                return;
+            }
         }
+        //need to format disk, with the whole disk in 512 byte blocks
+        sbFormat(DEFAULT_INODES, 0, Disk.blockSize);
     }
-    
+
     // Format disk
-    // freeListHead: linked list created starting at the first block number
-    // following the inodes (16 per block) + block zero for superblock.
-    // Total blocks defaults to 1000, per the test file and project descriptions
-    void sbFormat (int inodes) {
-        byte[] defaultSuperBlock = new byte[Disk.blockSize];
-        totalBlocks = 1000;
-        totalInodes = inodes;
-        freeListHead = (totalInodes / 16) + 2; //16 per block + 2 for offset
-        
-        //create new inodes
-        for (short iNumber = 0; iNumber < totalInodes; iNumber++) {
-            Inode inode = new Inode();
-            inode.toDisk(iNumber);
-        }
-        
-        //set up the linked list for freeList
-        //each freeBlock stores the number of the nextBlock
-        byte[] freeBlock = null;
-        int freeBlkNum = freeListHead;
-        int nextBlkNum = freeListHead +1;
-        for (; nextBlkNum < totalBlocks; freeBlkNum++, nextBlkNum++) {
-            freeBlock = new byte[Disk.blockSize];
-            SysLib.int2bytes(nextBlkNum, freeBlock, 0);
-            
-            //write freeBlock info to disk
-            SysLib.rawwrite(freeBlkNum, freeBlock);
+    // The free-space bitmap follows block zero for the superblock, the
+    // metadata journal follows the bitmap, and data blocks follow the
+    // journal. The inode table is a file like any other, mapped by an inode
+    // kept in the superblock, and starts out as the first data blocks with
+    // room for inodes inodes. It grows from free space as files are created,
+    // so format only pays for the inodes asked for. Format writes everything
+    // directly rather than through the journal, which it resets last.
+    // blocks is the file system's size in blocks of blockSize bytes, or 0 to
+    // fill the disk. Returns false, leaving the disk alone, if the blocks do
+    // not fit the disk or are too few to hold the layout.
+    boolean sbFormat (int inodes, int blocks, int blockSize) {
+        if (!Volume.isBlockSize(blockSize) || inodes <= 0 || blocks < 0)
+            return false;
+        long fits = (long) diskSize * Disk.blockSize / blockSize;
+        if (blocks == 0)
+            blocks = (int) Math.min(fits, Integer.MAX_VALUE);
+        if (blocks > fits)
+            return false;
+
+        int inodesPerBlock = blockSize / Inode.iNodeSize;
+        int tableBlocks = (Math.min(inodes, MAX_INODES) + inodesPerBlock - 1)
+                / inodesPerBlock;
+        int journalSize = Math.max(MIN_JOURNAL_BLOCKS,
+                JOURNAL_BYTES / blockSize);
+        long bits = (long) blockSize * 8;
+        if (1 + (blocks + bits - 1) / bits + journalSize + tableBlocks
+                >= blocks)
+            return false;   // no room left for data
+
+        //write back and forget anything cached under the old layout
+        SysLib.flush();
+        Volume.setBlockSize(blockSize);
+
+        totalBlocks = blocks;
+        bitmapStart = 1;
+        journalBlocks = journalSize;
+        layout();
+
+        //create new inodes, one write per block of inodes, in the first data
+        //blocks
+        inodeTable = new Inode(journal);
+        byte[] inodeBlock = emptyInodeBlock();
+        for (int i = 0; i < tableBlocks; i++) {
+            Volume.write(dataStart + i, inodeBlock);
+            inodeTable.registerTargetBlock(i * blockSize, dataStart + i);
         }
-        
-        //last block stores -1 to denote end of list
-        SysLib.int2bytes(-1, freeBlock, 0);
-        //write last freeBlock info to disk
-        SysLib.rawwrite(freeBlkNum, freeBlock);
-        
-        //update superBlock on disk
-        sync();
-    }
-
-    // Write back totalBlocks, inodeBlocks, and freeList to disk
-    void sync () {
-        //store superblock contents in a byte array
+        totalInodes = Math.min(tableBlocks * inodesPerBlock, MAX_INODES);
+        inodeTable.length = totalInodes * Inode.iNodeSize;
+        superDirty = false;
+
+        //everything before the data area is permanently in use, and so is
+        //the inode table
+        used = new BitSet(totalBlocks);
+        used.set(0, dataStart + tableBlocks);
+        freeBlocks = totalBlocks - dataStart - tableBlocks;
+        nextSearch = dataStart + tableBlocks;
+        bitmapDirty = new boolean[bitmapBlocks];
+        for (int i = 0; i < bitmapBlocks; i++)
+            Volume.write(bitmapStart + i, bitmapBlock(i));
+
+        //update superBlock on disk, then start an empty journal
+        Volume.write(0, superBlockImage());
+        SysLib.csync();
+        journal.format(journalStart, journalBlocks);
+        return true;
+    }
+
+    // Read the first Disk block of the superblock, which holds every field
+    private byte[] readSuperblock() {
         byte[] superBlock = new byte[Disk.blockSize];
+        SysLib.cread(0, superBlock);
+        return superBlock;
+    }
+
+    // Encode every field, and the inode table's inode, into a superblock
+    private byte[] superBlockImage() {
+        byte[] superBlock = new byte[Volume.blockSize()];
         SysLib.int2bytes(totalBlocks, superBlock, TOTAL_BLOCKS_OFFSET);
         SysLib.int2bytes(totalInodes, superBlock, TOTAL_INODES_OFFSET);
-        SysLib.int2bytes(freeListHead, superBlock, FREE_LIST_OFFSET);
-        
-        //write superBlock to the disk's first block
-        SysLib.rawwrite(0, superBlock);
+        SysLib.int2bytes(bitmapStart, superBlock, BITMAP_START_OFFSET);
+        SysLib.int2bytes(journalBlocks, superBlock, JOURNAL_BLOCKS_OFFSET);
+        SysLib.int2bytes(Volume.blockSize(), superBlock, BLOCK_SIZE_OFFSET);
+        inodeTable.toBytes(superBlock, INODE_TABLE_OFFSET);
+        return superBlock;
     }
 
-    // Dequeue the top block from the free list
-    int getFreeBlock () {
-        if (freeListHead > -1 && freeListHead < totalBlocks) {
-            int blockNumber = freeListHead;
-            byte[] tempBlock = new byte[Disk.blockSize];
-            
-            //read the number of the next free block and reassign it to
-            // freeListHead
-            SysLib.rawread(freeListHead, tempBlock);
-            freeListHead = SysLib.bytes2int(tempBlock, 0);
-            
-            //clear tempBlock's contents (so it doesn't have the next block's
-            // number in it)
-            SysLib.int2bytes(0, tempBlock, 0);
-            
-            //write the cleared block back to disk before returning its block
-            // number
-            SysLib.rawwrite(blockNumber, tempBlock);
-    
-            //update superBlock on disk
-            sync();
-            return blockNumber;
+    // Read the inode count and the inode table's inode once the journal has
+    // replayed any growth. Returns false if they do not agree, as on a disk
+    // laid out before the inode table could grow.
+    private boolean loadInodeTable() {
+        byte[] superBlock = readSuperblock();
+        totalInodes = SysLib.bytes2int(superBlock, TOTAL_INODES_OFFSET);
+        inodeTable = new Inode(superBlock, INODE_TABLE_OFFSET, journal);
+        superDirty = false;
+        return totalInodes > 0 && totalInodes <= MAX_INODES
+                && inodeTable.length == totalInodes * Inode.iNodeSize;
+    }
+
+    // A block of empty inodes
+    private byte[] emptyInodeBlock() {
+        Inode inode = new Inode();
+        byte[] inodeBlock = new byte[Volume.blockSize()];
+        for (short i = 0; i < Inode.inodesPerBlock(); i++)
+            inode.toBytes(inodeBlock, Inode.offsetOf(i));
+        return inodeBlock;
+    }
+
+    // The block holding inode iNumber, found through the inode table's
+    // extents like any file offset
+    int inodeBlock(short iNumber) {
+        return inodeTable.findTargetBlock(iNumber * Inode.iNodeSize);
+    }
+
+    // Grow the inode table when every inode is in use. The table doubles each
+    // time, as one run of free blocks where it can, so its growth costs a
+    // handful of extents. The new inode blocks are logged empty in the
+    // running journal transaction, and the superblock on the next sync.
+    // Returns false once the table holds every inumber or the disk is full.
+    synchronized boolean growInodes() {
+        int inodesPerBlock = Inode.inodesPerBlock();
+        int have = (totalInodes + inodesPerBlock - 1) / inodesPerBlock;
+        int run = Math.min(have, (MAX_INODES - totalInodes + inodesPerBlock
+                - 1) / inodesPerBlock);
+        if (run <= 0)
+            return false;   // every inumber is in the table
+
+        int start = getFreeBlocks(run);
+        while (start < 0 && run > 1) {
+            run /= 2;
+            start = getFreeBlocks(run);
+        }
+        if (start < 0)
+            return false;   // disk full
+
+        byte[] inodeBlock = emptyInodeBlock();
+        int added = 0;
+        while (added < run && mapInodeBlock(have + added, start + added)) {
+            journal.write(start + added, inodeBlock);
+            added++;
+        }
+        for (int b = added; b < run; b++)
+            returnBlock(start + b);
+        inodeTable.flushIndexBlock();
+        if (added == 0)
+            return false;
+
+        totalInodes = Math.min((have + added) * inodesPerBlock, MAX_INODES);
+        inodeTable.length = totalInodes * Inode.iNodeSize;
+        superDirty = true;
+        return true;
+    }
+
+    // Map block in as the inode table's index'th block, allocating whatever
+    // index blocks its extents need along the way
+    private boolean mapInodeBlock(int index, int block) {
+        int offset = index * Volume.blockSize();
+        int result = inodeTable.registerTargetBlock(offset, block);
+        while (result == -3) {
+            int indexBlock = getFreeBlock();
+            if (indexBlock < 0 || !inodeTable.setIndexBlock(indexBlock)) {
+                returnBlock(indexBlock);
+                return false;
+            }
+            result = inodeTable.registerTargetBlock(offset, block);
         }
+        return result == 0;
+    }
+
+    // Work out where the bitmap, journal and data area sit for the current
+    // totals and block size
+    private void layout() {
+        bitsPerBlock = Volume.blockSize() * 8;
+        bitmapBlocks = (int) (((long) totalBlocks + bitsPerBlock - 1)
+                / bitsPerBlock);
+        journalStart = bitmapStart + bitmapBlocks;
+        dataStart = journalStart + journalBlocks;
+    }
+
+    // Read the bitmap blocks into memory and count the free blocks once
+    private void loadBitmap() {
+        used = new BitSet(totalBlocks);
+        bitmapDirty = new boolean[bitmapBlocks];
+        byte[] bitmapBlock = new byte[Volume.blockSize()];
+        for (int i = 0; i < bitmapBlocks; i++) {
+            journal.read(bitmapStart + i, bitmapBlock);
+            int first = i * bitsPerBlock;
+            for (int bit = 0; bit < bitsPerBlock
+                    && first + bit < totalBlocks; bit++) {
+                if ((bitmapBlock[bit / 8] & (1 << (bit % 8))) != 0)
+                    used.set(first + bit);
+            }
+        }
+        freeBlocks = totalBlocks - used.cardinality();
+        nextSearch = dataStart;
+    }
+
+    // Log any changed bitmap blocks in the running journal transaction, and
+    // the superblock itself if the inode table grew. The rest of the
+    // superblock only changes when the disk is formatted.
+    synchronized void sync () {
+        if (superDirty) {
+            journal.write(0, superBlockImage());
+            superDirty = false;
+        }
+        for (int i = 0; i < bitmapBlocks; i++) {
+            if (bitmapDirty[i]) {
+                journal.write(bitmapStart + i, bitmapBlock(i));
+                bitmapDirty[i] = false;
+            }
+        }
+    }
 
-        // there are no more free blocks (freeListHead == -1) or there was an
-        // error
+    // Encode one block's worth of the in-memory bitmap
+    private byte[] bitmapBlock(int index) {
+        byte[] bitmapBlock = new byte[Volume.blockSize()];
+        int first = index * bitsPerBlock;
+        for (int bit = used.nextSetBit(first); bit >= 0
+                && bit < first + bitsPerBlock; bit = used.nextSetBit(bit + 1))
+            bitmapBlock[(bit - first) / 8] |= (byte)(1 << ((bit - first) % 8));
+        return bitmapBlock;
+    }
+
+    // Allocate a single free block
+    int getFreeBlock () {
+        return getFreeBlocks(1);
+    }
+
+    // Allocate a contiguous run of count free blocks and return the first one.
+    // The search starts where the last allocation ended so that consecutive
+    // calls hand out consecutive blocks. Returns -1 if no run is long enough.
+    synchronized int getFreeBlocks (int count) {
+        if (count <= 0 || count > freeBlocks)
+            return -1;
+
+        int start = findRun(nextSearch, totalBlocks, count);
+        if (start < 0)
+            start = findRun(dataStart, nextSearch + count - 1, count);
+        if (start < 0)
+            return -1;
+
+        used.set(start, start + count);
+        freeBlocks -= count;
+        nextSearch = (start + count < totalBlocks) ? start + count : dataStart;
+        markDirty(start, start + count);
+        return start;
+    }
+
+    // Find the first run of count clear bits lying within [from, to)
+    private int findRun(int from, int to, int count) {
+        to = Math.min(to, totalBlocks);
+        int start = used.nextClearBit(from);
+        while (start + count <= to) {
+            int end = used.nextSetBit(start);
+            if (end < 0 || end > to)
+                end = to;
+            if (end - start >= count)
+                return start;
+            start = used.nextClearBit(end);
+        }
         return -1;
     }
 
-    // Enqueue a given block to the front of the free list
-    boolean returnBlock(int blockNumber) {
-        if (blockNumber > 0 && blockNumber < totalBlocks) {
-            byte[] newFreeBlock = new byte[Disk.blockSize];
-            
-            //point to previous freeListHead
-            SysLib.int2bytes(freeListHead, newFreeBlock, 0);
-            
-            //freeListHead now points to the newly added block.
-            freeListHead = blockNumber;
-            
-            //write newFreeBlock info to disk
-            SysLib.rawwrite(blockNumber, newFreeBlock);
-    
-            //update superBlock on disk
-            sync();
+    // Return a given block to the free space bitmap
+    synchronized boolean returnBlock(int blockNumber) {
+        if (blockNumber >= dataStart && blockNumber < totalBlocks
+                && used.get(blockNumber)) {
+            used.clear(blockNumber);
+            freeBlocks++;
+            markDirty(blockNumber, blockNumber + 1);
             return true;
         }
-        //error, invalid blockNumber
+        //error, invalid or already free blockNumber
         return false;
     }
+
+    // Number of free blocks, kept up to date by every allocation and return
+    synchronized int freeBlockCount () {
+        return freeBlocks;
+    }
+
+    // Remember which bitmap blocks cover the blocks in [from, to)
+    private void markDirty(int from, int to) {
+        for (int i = from / bitsPerBlock; i <= (to - 1) / bitsPerBlock; i++)
+            bitmapDirty[i] = true;
+    }
 }
@@ -12,6 +12,53 @@ public class SysLib {
                 Kernel.WRITE, fd, buffer);
     } // end delete(String)
 
+    public static int readv(int fd, byte[][] buffers) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.READV, fd, buffers);
+    } // end readv(int, byte[][])
+
+    public static int writev(int fd, byte[][] buffers) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.WRITEV, fd, buffers);
+    } // end writev(int, byte[][])
+
+    public static int pread(int fd, byte[] buffer, int offset) {
+        Object[] args = new Object[2];
+        args[0] = buffer;
+        args[1] = offset;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.PREAD, fd, args);
+    } // end pread(int, byte[], int)
+
+    public static int pwrite(int fd, byte[] buffer, int offset) {
+        Object[] args = new Object[2];
+        args[0] = buffer;
+        args[1] = offset;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.PWRITE, fd, args);
+    } // end pwrite(int, byte[], int)
+
+    public static int lock(int fd, int offset, int length, boolean exclusive) {
+        int[] args = new int[3];
+        args[0] = offset;
+        args[1] = length;
+        args[2] = exclusive ? 1 : 0;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.LOCK, fd, args);
+    } // end lock(int, int, int, boolean)
+
+    public static int unlock(int fd, int offset, int length) {
+        int[] args = new int[2];
+        args[0] = offset;
+        args[1] = length;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.UNLOCK, fd, args);
+    } // end unlock(int, int, int)
+
     public static int open(String fileName, String mode) {
         String[] args = new String[2];
         args[0] = fileName;
@@ -45,11 +92,56 @@ public class SysLib {
                 Kernel.FORMAT, files, null);
     } // end format(int)
 
+    // blocks = 0 fills the disk, blockSize is a power of two, 512 to 65536
+    public static int format(int files, int blocks, int blockSize) {
+        int[] args = new int[2];
+        args[0] = blocks;
+        args[1] = blockSize;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.FORMAT, files, args);
+    } // end format(int, int, int)
+
     public static int delete(String fileName) {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
                 Kernel.DELETE, 0, fileName);
     } // end delete(String)
 
+    public static int freeBlocks() {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.FREEBLK, 0, null);
+    } // end freeBlocks()
+
+    public static int aread(int fd, byte[] buffer) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.AREAD, fd, buffer);
+    } // end aread(int, byte[])
+
+    public static int awrite(int fd, byte[] buffer) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.AWRITE, fd, buffer);
+    } // end awrite(int, byte[])
+
+    public static int await(int handle) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.AWAIT, handle, null);
+    } // end await(int)
+
+    public static int apoll(int handle) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.APOLL, handle, null);
+    } // end apoll(int)
+
+    public static int mkdir(String path) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.MKDIR, 0, path);
+    } // end mkdir(String)
+
+    public static int rmdir(String path) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.RMDIR, 0, path);
+    } // end rmdir(String)
+
     /* End notated additions */
 
 
@@ -68,6 +160,52 @@ public class SysLib {
                 Kernel.BOOT, 0, null);
     }
 
+    public static int boot(int cacheBlocks) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.BOOT, cacheBlocks, null);
+    }
+
+    // scheduler is Kernel.ROUND_ROBIN, Kernel.FEEDBACK or Kernel.VIRTUAL
+    public static int boot(int cacheBlocks, int scheduler) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.BOOT, cacheBlocks, scheduler);
+    }
+
+    // diskOrder is DiskQueue.FIFO, DiskQueue.CLOOK or DiskQueue.DEADLINE
+    public static int boot(int cacheBlocks, int scheduler, int diskOrder) {
+        int[] args = new int[2];
+        args[0] = scheduler;
+        args[1] = diskOrder;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.BOOT, cacheBlocks, args);
+    }
+
+    // backend is Kernel.HEAP_DISK or Kernel.MAPPED_DISK
+    public static int boot(int cacheBlocks, int scheduler, int diskOrder,
+                           int backend) {
+        int[] args = new int[3];
+        args[0] = scheduler;
+        args[1] = diskOrder;
+        args[2] = backend;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.BOOT, cacheBlocks, args);
+    }
+
+    // diskBlocks is the size of the disk in 512 byte blocks
+    public static int boot(int cacheBlocks, int scheduler, int diskOrder,
+                           int backend, int diskBlocks) {
+        int[] args = new int[4];
+        args[0] = scheduler;
+        args[1] = diskOrder;
+        args[2] = backend;
+        args[3] = diskBlocks;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.BOOT, cacheBlocks, args);
+    }
+
     public static int exit() {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
                 Kernel.EXIT, 0, null);
@@ -80,7 +218,12 @@ public class SysLib {
 
     public static int disk() {
         return Kernel.interrupt(Kernel.INTERRUPT_DISK,
-                0, 0, null);
+                Kernel.DISK_DONE, 0, null);
+    }
+
+    public static int aiodone(int handle) {
+        return Kernel.interrupt(Kernel.INTERRUPT_DISK,
+                Kernel.AIO_DONE, handle, null);
     }
 
     public static int cin(StringBuffer s) {
@@ -108,6 +251,28 @@ public class SysLib {
                 Kernel.RAWWRITE, blkNumber, b);
     }
 
+    public static int rawread(int blkNumber, int blocks, byte[] b,
+                              int offset) {
+        Object[] args = new Object[3];
+        args[0] = b;
+        args[1] = blocks;
+        args[2] = offset;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.RAWREADRUN, blkNumber, args);
+    }
+
+    public static int rawwrite(int blkNumber, int blocks, byte[] b,
+                               int offset) {
+        Object[] args = new Object[3];
+        args[0] = b;
+        args[1] = blocks;
+        args[2] = offset;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.RAWWRITERUN, blkNumber, args);
+    }
+
     public static int sync() {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
                 Kernel.SYNC, 0, null);
@@ -118,11 +283,36 @@ public class SysLib {
                 Kernel.CREAD, blkNumber, b);
     }
 
+    public static int cread(int blkNumber, int blocks, byte[] b, int offset) {
+        Object[] args = new Object[3];
+        args[0] = b;
+        args[1] = blocks;
+        args[2] = offset;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CREADRUN, blkNumber, args);
+    }
+
     public static int cwrite(int blkNumber, byte[] b) {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
                 Kernel.CWRITE, blkNumber, b);
     }
 
+    public static int cwrite(int blkNumber, int blocks, byte[] b, int offset) {
+        Object[] args = new Object[3];
+        args[0] = b;
+        args[1] = blocks;
+        args[2] = offset;
+
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CWRITERUN, blkNumber, args);
+    }
+
+    public static int cprefetch(int blkNumber, int blocks) {
+        return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CPREFETCH, blkNumber, blocks);
+    }
+
     public static int flush() {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE,
                 Kernel.CFLUSH, 0, null);
@@ -0,0 +1,149 @@
+/**
+ * @file Volume.java
+ * @author Midori Williams
+ * @author Kevin Hsu
+ * @author Bowman Simmons
+ *
+ * The Volume holds the block size the disk was formatted with and moves file
+ * system blocks through the buffer cache. A file system block is a power of
+ * two from 512 bytes to 64 KB and is made of that many 512 byte Disk blocks
+ * in a row, so file system block n starts at Disk block n * sectors. Every
+ * block number the superblock, inodes and journal hand around is a file
+ * system block number; only this class turns them into Disk blocks.
+ *
+ * The block size is read from the superblock before anything else on the
+ * disk, and changed only by format.
+ * */
+
+public class Volume {
+    public final static int MIN_BLOCK_SIZE = Disk.blockSize;
+    public final static int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private static volatile int blockSize = Disk.blockSize; // bytes a block
+    private static volatile int sectors = 1;                // Disk blocks
+
+    /** ============================= isBlockSize ==============================
+     * @param size - a proposed block size in bytes
+     * @return     - true if it is a power of two from 512 bytes to 64 KB
+     * */
+    public static boolean isBlockSize(int size) {
+        return size >= MIN_BLOCK_SIZE && size <= MAX_BLOCK_SIZE
+                && (size & (size - 1)) == 0;
+    }
+
+    /** ============================= setBlockSize =============================
+     * Switches to the block size of the disk being mounted or formatted
+     *
+     * @param size - a block size accepted by isBlockSize()
+     * */
+    static synchronized void setBlockSize(int size) {
+        blockSize = size;
+        sectors = size / Disk.blockSize;
+    }
+
+    /** ============================== blockSize ===============================
+     * @return - the size of one file system block in bytes
+     * */
+    public static int blockSize() {
+        return blockSize;
+    }
+
+    /** =============================== sectors ================================
+     * @return - the number of Disk blocks in one file system block
+     * */
+    public static int sectors() {
+        return sectors;
+    }
+
+    /** ================================= read =================================
+     * Reads one block through the buffer cache
+     *
+     * @param blockId - the block to read
+     * @param buffer  - receives the block
+     * */
+    public static void read(int blockId, byte[] buffer) {
+        read(blockId, 1, buffer, 0);
+    }
+
+    /** ================================= read =================================
+     * Reads a run of consecutive blocks through the buffer cache in one
+     * request
+     *
+     * @param blockId - the first block of the run
+     * @param blocks  - the number of blocks in the run
+     * @param buffer  - receives the blocks back to back
+     * @param offset  - where in buffer the first block goes
+     * */
+    public static void read(int blockId, int blocks, byte[] buffer,
+                            int offset) {
+        if (sectors == 1 && blocks == 1 && offset == 0)
+            SysLib.cread(blockId, buffer);
+        else
+            SysLib.cread(blockId * sectors, blocks * sectors, buffer, offset);
+    }
+
+    /** ================================ write =================================
+     * Writes one block through the buffer cache
+     *
+     * @param blockId - the block to write
+     * @param buffer  - the block contents
+     * */
+    public static void write(int blockId, byte[] buffer) {
+        write(blockId, 1, buffer, 0);
+    }
+
+    /** ================================ write =================================
+     * Writes a run of consecutive blocks through the buffer cache in one
+     * request
+     *
+     * @param blockId - the first block of the run
+     * @param blocks  - the number of blocks in the run
+     * @param buffer  - holds the blocks back to back
+     * @param offset  - where in buffer the first block starts
+     * */
+    public static void write(int blockId, int blocks, byte[] buffer,
+                             int offset) {
+        if (sectors == 1 && blocks == 1 && offset == 0)
+            SysLib.cwrite(blockId, buffer);
+        else
+            SysLib.cwrite(blockId * sectors, blocks * sectors, buffer, offset);
+    }
+
+    /** =============================== prefetch ===============================
+     * Brings a run of blocks into the buffer cache ahead of use
+     *
+     * @param blockId - the first block of the run
+     * @param blocks  - the number of blocks in the run
+     * */
+    public static void prefetch(int blockId, int blocks) {
+        SysLib.cprefetch(blockId * sectors, blocks * sectors);
+    }
+
+    /** =============================== rawread ================================
+     * Reads one block straight from the disk as a single run of Disk blocks,
+     * bypassing the buffer cache
+     *
+     * @param blockId - the block to read
+     * @param buffer  - receives the block
+     * */
+    public static void rawread(int blockId, byte[] buffer) {
+        if (sectors == 1)
+            SysLib.rawread(blockId, buffer);
+        else
+            SysLib.rawread(blockId * sectors, sectors, buffer, 0);
+    }
+
+    /** =============================== rawwrite ===============================
+     * Writes one block straight to the disk as a single run of Disk blocks,
+     * bypassing the buffer cache
+     *
+     * @param blockId - the block to write
+     * @param buffer  - the block contents
+     * */
+    public static void rawwrite(int blockId, byte[] buffer) {
+        if (sectors == 1)
+            SysLib.rawwrite(blockId, buffer);
+        else
+            SysLib.rawwrite(blockId * sectors, sectors, buffer, 0);
+    }
+}